@@ -0,0 +1,96 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.mstorage.entity.MediaIndex;
+import com.ricohapi.mstorage.entity.Paging;
+import com.ricohapi.mstorage.response.RespList;
+import com.ricohapi.mstorage.response.RespMeta;
+
+import net.arnx.jsonic.JSON;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading a response body into a String before decoding it with decoding it
+ * straight from the stream. Run with the gc profiler to see the allocation per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonDecodeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ListBody {
+        @Param({"25", "100", "1000"})
+        public int mediaCount;
+
+        byte[] body;
+
+        @Setup
+        public void setUp() {
+            body = Payloads.list(mediaCount);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MetaBody {
+        byte[] body;
+
+        @Setup
+        public void setUp() {
+            body = Payloads.meta(40, 12, 10);
+        }
+    }
+
+    @Benchmark
+    public String readListBody(ListBody list) throws IOException {
+        return RicohAPIRequest.getBody(new ByteArrayInputStream(list.body));
+    }
+
+    @Benchmark
+    public RespList decodeListFromString(ListBody list) throws IOException {
+        String body = RicohAPIRequest.getBody(new ByteArrayInputStream(list.body));
+        return JSON.decode(body, RespList.class);
+    }
+
+    @Benchmark
+    public RespList decodeListFromStream(ListBody list) throws IOException {
+        return JSON.decode(new ByteArrayInputStream(list.body), RespList.class);
+    }
+
+    @Benchmark
+    public Paging readListIncrementally(ListBody list, final Blackhole blackhole) throws IOException {
+        return MediaListReader.read(new ByteArrayInputStream(list.body), new MediaIndexListener() {
+            @Override
+            public void onMediaIndex(MediaIndex mediaIndex) {
+                blackhole.consume(mediaIndex);
+            }
+        });
+    }
+
+    @Benchmark
+    public RespMeta decodeMetaFromString(MetaBody meta) throws IOException {
+        String body = RicohAPIRequest.getBody(new ByteArrayInputStream(meta.body));
+        return JSON.decode(body, RespMeta.class);
+    }
+
+    @Benchmark
+    public RespMeta decodeMetaFromStream(MetaBody meta) throws IOException {
+        return JSON.decode(new ByteArrayInputStream(meta.body), RespMeta.class);
+    }
+}
@@ -0,0 +1,73 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.mstorage.entity.CompactMetaMap;
+
+import net.arnx.jsonic.JSON;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports the heap retained per media by the metadata maps as JSONIC decodes them and by
+ * CompactMetaMap. Run with: ./gradlew :benchmark:metaFootprint [-PmediaCount=N]
+ */
+public class MetaFootprint {
+    private static final String[] SECTIONS = {"exif", "gpano", "user"};
+
+    public static void main(String[] args) throws IOException {
+        int mediaCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        // each representation is measured alone, so that strings it shares with the other are counted
+        long decodedBytes = measure(mediaCount, false);
+        long compactBytes = measure(mediaCount, true);
+
+        System.out.println("media: " + mediaCount);
+        System.out.println("decoded maps: " + decodedBytes / mediaCount + " bytes per media");
+        System.out.println("compact maps: " + compactBytes / mediaCount + " bytes per media"
+                + " (" + Math.round(100.0 * compactBytes / decodedBytes) + "% of decoded)");
+    }
+
+    /**
+     * @return the heap retained by the metadata of mediaCount media, decoded by JSONIC and
+     * converted to CompactMetaMaps when compact is true
+     */
+    private static long measure(int mediaCount, boolean compact) throws IOException {
+        List<Map<String, Map<String, String>>> metas = new ArrayList<>();
+        long base = usedHeap();
+        for (int i = 0; i < mediaCount; i++) {
+            Map<String, Map<String, String>> decoded =
+                    JSON.decode(new ByteArrayInputStream(Payloads.photoMeta(i)));
+            if (compact) {
+                Map<String, Map<String, String>> meta = new LinkedHashMap<>();
+                for (String section : SECTIONS) {
+                    meta.put(section, new CompactMetaMap(decoded.get(section)));
+                }
+                decoded = meta;
+            }
+            metas.add(decoded);
+        }
+        long bytes = usedHeap() - base;
+        if (metas.size() != mediaCount) {
+            throw new IllegalStateException();
+        }
+        return bytes;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
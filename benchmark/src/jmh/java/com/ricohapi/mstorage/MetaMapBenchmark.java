@@ -0,0 +1,67 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.mstorage.entity.CompactMetaMap;
+
+import net.arnx.jsonic.JSON;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares lookups and construction of the maps JSONIC decodes with CompactMetaMap.
+ * The gc profiler shows the bytes allocated to build each map; see MetaFootprint for the retained size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetaMapBenchmark {
+    @Param({"decoded", "compact"})
+    public String representation;
+
+    private Map<String, String> decoded;
+    private Map<String, String> exif;
+
+    @Setup
+    public void setUp() throws IOException {
+        Map<String, Map<String, String>> meta = JSON.decode(new ByteArrayInputStream(Payloads.photoMeta(1)));
+        decoded = meta.get("exif");
+        exif = "compact".equals(representation) ? new CompactMetaMap(decoded) : decoded;
+    }
+
+    @Benchmark
+    public String getString() {
+        return exif.get("Model");
+    }
+
+    @Benchmark
+    public String getNumericString() {
+        return exif.get("ImageWidth");
+    }
+
+    @Benchmark
+    public Number getNumber() {
+        return CompactMetaMap.parseNumber(exif.get("ExposureTime"));
+    }
+
+    @Benchmark
+    public Map<String, String> build() {
+        return "compact".equals(representation) ? new CompactMetaMap(decoded) : new LinkedHashMap<>(decoded);
+    }
+}
@@ -0,0 +1,91 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Builds response bodies shaped like the ones the Media Storage API returns.
+ */
+class Payloads {
+    private static final String ID_PREFIX = "a1b2c3d4e5f6a1b2c3d4e5f6a1b2c3d4e5f6a1b2c3d4e5f6a1b2c3d4e5f6";
+
+    private Payloads() {
+    }
+
+    static byte[] list(int mediaCount) {
+        StringBuilder builder = new StringBuilder("{\"media\":[");
+        for (int i = 0; i < mediaCount; i++) {
+            if (i > 0) builder.append(',');
+            builder.append("{\"id\":\"").append(ID_PREFIX).append(i).append("\"}");
+        }
+        builder.append("],\"paging\":{\"next\":\"")
+                .append(ID_PREFIX).append(mediaCount - 1)
+                .append("\",\"previous\":\"")
+                .append(ID_PREFIX).append(0)
+                .append("\"}}");
+        return utf8(builder.toString());
+    }
+
+    static byte[] meta(int exifCount, int gpanoCount, int userCount) {
+        StringBuilder builder = new StringBuilder("{");
+        appendSection(builder, "exif", "Tag", exifCount).append(',');
+        appendSection(builder, "gpano", "Property", gpanoCount).append(',');
+        appendSection(builder, "user", "key", userCount);
+        builder.append('}');
+        return utf8(builder.toString());
+    }
+
+    /**
+     * A meta body with the exif and gpano fields a THETA photo carries; the values vary with index.
+     */
+    static byte[] photoMeta(int index) {
+        StringBuilder builder = new StringBuilder("{\"exif\":{");
+        builder.append("\"Make\":\"RICOH\",\"Model\":\"RICOH THETA S\",\"Software\":\"RICOH THETA S Ver 1.62\"")
+                .append(",\"DateTimeOriginal\":\"2016:07:").append(10 + index % 20).append(" 12:")
+                .append(10 + index % 50).append(":").append(10 + index % 50).append('"')
+                .append(",\"ExposureTime\":\"1/").append(50 + index % 1000).append('"')
+                .append(",\"FNumber\":\"2.0\",\"ISOSpeedRatings\":\"").append(100 + index % 8 * 100).append('"')
+                .append(",\"ExposureBiasValue\":\"0\",\"FocalLength\":\"1.31\",\"WhiteBalance\":\"0\"")
+                .append(",\"ImageWidth\":\"5376\",\"ImageLength\":\"2688\",\"Orientation\":\"1\"")
+                .append(",\"GPSLatitude\":\"35.").append(600000 + index).append('"')
+                .append(",\"GPSLongitude\":\"139.").append(700000 + index).append('"')
+                .append("},\"gpano\":{");
+        builder.append("\"ProjectionType\":\"equirectangular\",\"UsePanoramaViewer\":\"True\"")
+                .append(",\"CroppedAreaImageWidthPixels\":\"5376\",\"CroppedAreaImageHeightPixels\":\"2688\"")
+                .append(",\"FullPanoWidthPixels\":\"5376\",\"FullPanoHeightPixels\":\"2688\"")
+                .append(",\"CroppedAreaLeftPixels\":\"0\",\"CroppedAreaTopPixels\":\"0\"")
+                .append(",\"PoseHeadingDegrees\":\"").append(index % 360).append(".5\"")
+                .append("},\"user\":{\"album\":\"trip").append(index % 10).append("\"}}");
+        return utf8(builder.toString());
+    }
+
+    static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+
+    private static StringBuilder appendSection(StringBuilder builder, String name, String keyPrefix, int count) {
+        builder.append('"').append(name).append("\":{");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(',');
+            builder.append('"').append(keyPrefix).append(i).append("\":\"value of ")
+                    .append(keyPrefix).append(i).append('"');
+        }
+        return builder.append('}');
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
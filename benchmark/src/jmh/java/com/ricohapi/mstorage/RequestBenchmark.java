@@ -0,0 +1,52 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how request parameters are joined into a query string or a JSON body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestBenchmark {
+
+    @Param({"1", "3", "10"})
+    public int paramCount;
+
+    private Map<String, Object> params;
+
+    @Setup
+    public void setUp() {
+        params = new LinkedHashMap<>();
+        params.put("limit", 100);
+        for (int i = 1; i < paramCount; i++) {
+            params.put("meta.user.key" + i, "value" + i);
+        }
+    }
+
+    @Benchmark
+    public String joinUrlEncoded() {
+        return RicohAPIRequest.joinParameters(params, RicohAPIRequest.ParamType.URLENCODE);
+    }
+
+    @Benchmark
+    public String joinJson() {
+        return RicohAPIRequest.joinParameters(params, RicohAPIRequest.ParamType.JSON);
+    }
+}
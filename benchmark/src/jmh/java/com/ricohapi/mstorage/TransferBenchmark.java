@@ -0,0 +1,85 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures upload and download of whole contents through RicohAPIRequest against a local stub.
+ * Divide the payload size by the score to get the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransferBenchmark {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Param({"65536", "1048576", "16777216"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private StubServer server;
+    private ConnectionPool pool;
+    private Map<String, String> header;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = Payloads.content(payloadSize);
+        server = new StubServer(payload);
+        pool = new ConnectionPool();
+        header = new HashMap<>();
+        header.put("Authorization", "Bearer benchmark");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public String upload() throws IOException {
+        RicohAPIRequest request = new RicohAPIRequest(server.getUrl(), pool);
+        try {
+            request.upload(header, new ByteArrayInputStream(payload), payload.length);
+            return request.getResponseBody();
+        } finally {
+            request.close();
+        }
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        RicohAPIRequest request = new RicohAPIRequest(server.getUrl(), pool);
+        try {
+            InputStream inputStream = request.download(header);
+            long total = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                total += read;
+            }
+            inputStream.close();
+            return total;
+        } finally {
+            request.close();
+        }
+    }
+}
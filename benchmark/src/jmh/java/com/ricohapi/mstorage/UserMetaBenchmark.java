@@ -0,0 +1,52 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the validation done on every key and value passed to addMeta.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UserMetaBenchmark {
+    private MediaStorage mstorage;
+    private String longValue;
+
+    @Setup
+    public void setUp() {
+        mstorage = new MediaStorage(null);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            builder.append('v');
+        }
+        longValue = builder.toString();
+    }
+
+    @Benchmark
+    public String replaceValidKey() {
+        return mstorage.replaceUserMeta("user.camera_model");
+    }
+
+    @Benchmark
+    public String replaceInvalidKey() {
+        return mstorage.replaceUserMeta("exif.Model");
+    }
+
+    @Benchmark
+    public boolean validateLongValue() {
+        return mstorage.isValidValue(longValue);
+    }
+}
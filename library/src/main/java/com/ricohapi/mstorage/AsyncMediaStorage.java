@@ -0,0 +1,259 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.mstorage.entity.ItemResult;
+import com.ricohapi.mstorage.entity.MediaContent;
+import com.ricohapi.mstorage.entity.MediaInfo;
+import com.ricohapi.mstorage.entity.MediaList;
+import com.ricohapi.mstorage.entity.MediaMeta;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs MediaStorage operations on an Executor and returns a MediaFuture for each of them.
+ * At most maxInFlight operations run at the same time; the others wait in a queue
+ * without blocking the caller or an executor thread.
+ */
+public class AsyncMediaStorage {
+    private final MediaStorage mediaStorage;
+    private final Executor executor;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final Queue<Task> pending = new ConcurrentLinkedQueue<>();
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    public AsyncMediaStorage(MediaStorage mediaStorage, Executor executor) {
+        this(mediaStorage, executor, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public AsyncMediaStorage(MediaStorage mediaStorage, Executor executor, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.mediaStorage = mediaStorage;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Returns a virtual-thread-per-task executor when the running JVM supports it (Java 21+),
+     * or a cached thread pool otherwise.
+     */
+    public static ExecutorService newDefaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public MediaStorage getMediaStorage() {
+        return mediaStorage;
+    }
+
+    public int getInFlightCount() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    public int getQueuedCount() {
+        return pending.size();
+    }
+
+    public MediaFuture<MediaInfo> upload(final File file) {
+        final MediaFuture<MediaInfo> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                mediaStorage.upload(file, future);
+            }
+        });
+        return future;
+    }
+
+    public MediaFuture<MediaInfo> upload(final InputStream inputStream, final long contentLength) {
+        final MediaFuture<MediaInfo> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                mediaStorage.upload(inputStream, contentLength, future);
+            }
+        });
+        return future;
+    }
+
+    public MediaFuture<MediaContent> download(final String mediaId) {
+        final MediaFuture<MediaContent> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                mediaStorage.download(mediaId, future);
+            }
+        });
+        return future;
+    }
+
+    public MediaFuture<MediaList> list(final Map<String, ?> params) {
+        final MediaFuture<MediaList> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                mediaStorage.list(params, future);
+            }
+        });
+        return future;
+    }
+
+    public MediaFuture<Object> delete(final String mediaId) {
+        final MediaFuture<Object> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                mediaStorage.delete(mediaId, future);
+            }
+        });
+        return future;
+    }
+
+    public MediaFuture<MediaInfo> info(final String mediaId) {
+        final MediaFuture<MediaInfo> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                mediaStorage.info(mediaId, future);
+            }
+        });
+        return future;
+    }
+
+    public MediaFuture<MediaMeta> meta(final String mediaId) {
+        final MediaFuture<MediaMeta> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                mediaStorage.meta(mediaId, future);
+            }
+        });
+        return future;
+    }
+
+    public MediaFuture<Map<String, String>> meta(final String mediaId, final String fieldName) {
+        final MediaFuture<Map<String, String>> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                mediaStorage.meta(mediaId, fieldName, future);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Completes once every key has been written, or fails with the error of a key that could not be.
+     */
+    public MediaFuture<Object> addMeta(final String mediaId, final Map<String, String> userMeta) {
+        final MediaFuture<Object> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                // the per-key addMeta completes once for each key, so wait for all of them
+                mediaStorage.addMeta(mediaId, userMeta, 1, new CompletionHandler<Map<String, ItemResult<String, Object>>>() {
+                    @Override
+                    public void onCompleted(Map<String, ItemResult<String, Object>> results) {
+                        for (ItemResult<String, Object> result : results.values()) {
+                            if (result != null && !result.isSucceeded()) {
+                                future.onThrowable(result.getThrowable());
+                                return;
+                            }
+                        }
+                        future.onCompleted(new Object());
+                    }
+
+                    @Override
+                    public void onThrowable(Throwable t) {
+                        future.onThrowable(t);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    public MediaFuture<Object> removeMeta(final String mediaId, final String key) {
+        final MediaFuture<Object> future = new MediaFuture<>();
+        submit(future, new Runnable() {
+            @Override
+            public void run() {
+                mediaStorage.removeMeta(mediaId, key, future);
+            }
+        });
+        return future;
+    }
+
+    private void submit(MediaFuture<?> future, Runnable operation) {
+        pending.add(new Task(future, operation));
+        drain();
+    }
+
+    private void drain() {
+        while (!pending.isEmpty() && permits.tryAcquire()) {
+            final Task task = pending.poll();
+            if (task == null) {
+                permits.release();
+                continue;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            permits.release();
+                            drain();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                task.future.onThrowable(e);
+            }
+        }
+    }
+
+    private static class Task implements Runnable {
+        private final MediaFuture<?> future;
+        private final Runnable operation;
+
+        Task(MediaFuture<?> future, Runnable operation) {
+            this.future = future;
+            this.operation = operation;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!future.isDone()) {
+                    operation.run();
+                }
+            } catch (RuntimeException e) {
+                future.onThrowable(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Adds the access token of a TokenManager to each request of another transport.
+ * A request rejected with 401 is sent once more with a renewed token, except uploads,
+ * whose body cannot be sent twice. If the token cannot be renewed, the 401 response is returned.
+ */
+class AuthorizedTransport implements HttpTransport {
+    private final HttpTransport transport;
+    private final TokenManager tokenManager;
+
+    private interface Call {
+        TransportResponse send(Map<String, String> header) throws IOException;
+    }
+
+    AuthorizedTransport(HttpTransport transport, TokenManager tokenManager) {
+        this.transport = transport;
+        this.tokenManager = tokenManager;
+    }
+
+    HttpTransport getTransport() {
+        return transport;
+    }
+
+    @Override
+    public TransportResponse get(final String url, final Map<String, ?> queryParams, Map<String, String> header) throws IOException {
+        return execute(header, true, new Call() {
+            @Override
+            public TransportResponse send(Map<String, String> header) throws IOException {
+                return transport.get(url, queryParams, header);
+            }
+        });
+    }
+
+    @Override
+    public TransportResponse post(final String url, Map<String, String> header, final Map<String, ?> params,
+                                  final RicohAPIRequest.ParamType paramType) throws IOException {
+        return execute(header, true, new Call() {
+            @Override
+            public TransportResponse send(Map<String, String> header) throws IOException {
+                return transport.post(url, header, params, paramType);
+            }
+        });
+    }
+
+    @Override
+    public TransportResponse put(final String url, Map<String, String> header, final String value) throws IOException {
+        return execute(header, true, new Call() {
+            @Override
+            public TransportResponse send(Map<String, String> header) throws IOException {
+                return transport.put(url, header, value);
+            }
+        });
+    }
+
+    @Override
+    public TransportResponse delete(final String url, Map<String, String> header) throws IOException {
+        return execute(header, true, new Call() {
+            @Override
+            public TransportResponse send(Map<String, String> header) throws IOException {
+                return transport.delete(url, header);
+            }
+        });
+    }
+
+    @Override
+    public TransportResponse upload(final String url, Map<String, String> header, final InputStream inputStream,
+                                    final long contentLength) throws IOException {
+        return execute(header, false, new Call() {
+            @Override
+            public TransportResponse send(Map<String, String> header) throws IOException {
+                return transport.upload(url, header, inputStream, contentLength);
+            }
+        });
+    }
+
+    @Override
+    public TransportResponse download(final String url, Map<String, String> header) throws IOException {
+        return execute(header, true, new Call() {
+            @Override
+            public TransportResponse send(Map<String, String> header) throws IOException {
+                return transport.download(url, header);
+            }
+        });
+    }
+
+    private TransportResponse execute(Map<String, String> header, boolean replayable, Call call) throws IOException {
+        Map<String, String> authorized = new HashMap<>(header);
+        String token = tokenManager.getAccessToken();
+        authorized.put("Authorization", "Bearer " + token);
+        TransportResponse response = call.send(authorized);
+        int responseCode;
+        try {
+            responseCode = response.getResponseCode();
+        } catch (IOException e) {
+            response.close();
+            throw e;
+        }
+        if (!replayable || responseCode != HttpURLConnection.HTTP_UNAUTHORIZED) {
+            return response;
+        }
+        String renewed = tokenManager.refresh(token);
+        if (renewed == null) {
+            return response;
+        }
+        response.close();
+        authorized.put("Authorization", "Bearer " + renewed);
+        return call.send(authorized);
+    }
+}
@@ -0,0 +1,254 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.auth.RicohAPIException;
+import com.ricohapi.mstorage.entity.BatchProgress;
+import com.ricohapi.mstorage.entity.ItemResult;
+
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes many media concurrently through MediaStorage.delete, in the BULK lane.
+ * A media that is already gone (404) counts as deleted, with a result of false.
+ * <p>
+ * To stay within a rate limit, either give mediaStorage a transport that includes a ScheduledTransport,
+ * or pass a RequestScheduler here; each delete then holds a BULK permit of that scheduler.
+ */
+public class BatchDeleter {
+    private final MediaStorage mediaStorage;
+    private final int parallelism;
+    private final RequestScheduler scheduler;
+    private Listener listener;
+
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    public interface Listener {
+        /**
+         * @param result true when the media was deleted, false when it was already gone
+         */
+        void onProgress(ItemResult<String, Boolean> result, BatchProgress progress);
+    }
+
+    public BatchDeleter(MediaStorage mediaStorage) {
+        this(mediaStorage, DEFAULT_PARALLELISM, null);
+    }
+
+    /**
+     * @param scheduler limits the rate of deletes, may be null
+     */
+    public BatchDeleter(MediaStorage mediaStorage, int parallelism, RequestScheduler scheduler) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("invalid parallelism: " + parallelism);
+        }
+        this.mediaStorage = mediaStorage.withLane(RequestScheduler.Lane.BULK);
+        this.parallelism = parallelism;
+        this.scheduler = scheduler;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Blocks until every media in mediaIds has been deleted or has failed, then completes the handler
+     * once with the totals. Repeated ids are deleted once; the result of each id goes to the listener.
+     */
+    public void delete(Iterable<String> mediaIds, CompletionHandler<BatchProgress> handler) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (String mediaId : mediaIds) {
+            ids.add(mediaId);
+        }
+        Progress progress = new Progress(listener);
+        try {
+            run(ids.iterator(), progress);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handler.onThrowable(e);
+            return;
+        }
+        handler.onCompleted(progress.snapshot());
+    }
+
+    /**
+     * Deletes every media matching the search filter, as passed to list with the "filter" key.
+     * Deletes start while the pages of the search are still being fetched. Since deleting can shift
+     * the paging, the search is repeated until it returns no media that was not tried yet;
+     * a media that failed is not tried again.
+     */
+    public void purge(Map<String, ?> filter, CompletionHandler<BatchProgress> handler) {
+        if (filter == null || filter.isEmpty()) {
+            handler.onThrowable(new RicohAPIException(0, "invalid filter: " + filter));
+            return;
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put(MediaStorage.LIST_PARAM_KEY_FILTER, filter);
+        Progress progress = new Progress(listener);
+        Set<String> tried = new HashSet<>();
+        try {
+            while (true) {
+                MediaIterator iterator = mediaStorage.iterate(params);
+                UntriedIds ids = new UntriedIds(iterator, tried);
+                try {
+                    run(ids, progress);
+                } finally {
+                    iterator.close();
+                }
+                if (ids.count == 0) {
+                    if (ids.error != null) {
+                        handler.onThrowable(ids.error);
+                        return;
+                    }
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handler.onThrowable(e);
+            return;
+        }
+        handler.onCompleted(progress.snapshot());
+    }
+
+    private void run(Iterator<String> ids, final Progress progress) throws InterruptedException {
+        BatchExecutor.run(ids, parallelism, parallelism * 2,
+                new BatchExecutor.Task<String, Boolean>() {
+                    @Override
+                    public void run(String mediaId, CompletionHandler<Boolean> itemHandler) {
+                        try {
+                            delete(mediaId, itemHandler);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            itemHandler.onThrowable(e);
+                        }
+                    }
+                },
+                new BatchExecutor.Listener<String, Boolean>() {
+                    @Override
+                    public void onResult(ItemResult<String, Boolean> result) {
+                        progress.record(result);
+                    }
+                });
+    }
+
+    private void delete(final String mediaId, final CompletionHandler<Boolean> itemHandler) throws InterruptedException {
+        if (scheduler != null) {
+            scheduler.acquire(RequestScheduler.Lane.BULK);
+        }
+        try {
+            mediaStorage.delete(mediaId, new CompletionHandler<Object>() {
+                @Override
+                public void onCompleted(Object result) {
+                    itemHandler.onCompleted(true);
+                }
+
+                @Override
+                public void onThrowable(Throwable t) {
+                    if (t instanceof RicohAPIException
+                            && ((RicohAPIException) t).getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                        MediaMirror mirror = mediaStorage.getMirror();
+                        if (mirror != null) {
+                            mirror.remove(mediaId);
+                        }
+                        itemHandler.onCompleted(false);
+                    } else {
+                        itemHandler.onThrowable(t);
+                    }
+                }
+            });
+        } finally {
+            if (scheduler != null) {
+                scheduler.release(RequestScheduler.Lane.BULK);
+            }
+        }
+    }
+
+    private static class Progress {
+        private final long startedAt = System.currentTimeMillis();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final Listener listener;
+
+        Progress(Listener listener) {
+            this.listener = listener;
+        }
+
+        void record(ItemResult<String, Boolean> result) {
+            if (result.isSucceeded()) {
+                succeeded.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+            if (listener != null) {
+                listener.onProgress(result, snapshot());
+            }
+        }
+
+        BatchProgress snapshot() {
+            return new BatchProgress(succeeded.get(), failed.get(), 0, System.currentTimeMillis() - startedAt);
+        }
+    }
+
+    /**
+     * The ids of a search that were not tried yet. A page that cannot be fetched ends the iteration
+     * and is kept in error.
+     */
+    private static class UntriedIds implements Iterator<String> {
+        private final MediaIterator media;
+        private final Set<String> tried;
+        private String next;
+        int count;
+        Throwable error;
+
+        UntriedIds(MediaIterator media, Set<String> tried) {
+            this.media = media;
+            this.tried = tried;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (error != null) {
+                return next != null;
+            }
+            try {
+                while (next == null && media.hasNext()) {
+                    String mediaId = media.next().getId();
+                    if (tried.add(mediaId)) {
+                        next = mediaId;
+                        count++;
+                    }
+                }
+            } catch (IllegalStateException e) {
+                error = e.getCause() == null ? e : e.getCause();
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String mediaId = next;
+            next = null;
+            return mediaId;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+    }
+}
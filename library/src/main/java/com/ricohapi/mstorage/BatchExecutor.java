@@ -0,0 +1,109 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.mstorage.entity.ItemResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one task per item on a fixed number of threads.
+ * Items are pulled from the iterator only when there is room in the queue. run only passes each result
+ * to its listener, so arbitrarily long sources are consumed with bounded memory; execute also keeps
+ * every result to return them.
+ */
+class BatchExecutor {
+
+    interface Task<I, V> {
+        void run(I item, CompletionHandler<V> handler);
+    }
+
+    interface Listener<I, V> {
+        void onResult(ItemResult<I, V> result);
+    }
+
+    private BatchExecutor() {
+    }
+
+    /**
+     * @return the result of every item, in completion order
+     */
+    static <I, V> List<ItemResult<I, V>> execute(Iterator<? extends I> items, int parallelism, int queueCapacity,
+                                                 Task<I, V> task, final Listener<I, V> listener)
+            throws InterruptedException {
+        final List<ItemResult<I, V>> results = Collections.synchronizedList(new ArrayList<ItemResult<I, V>>());
+        run(items, parallelism, queueCapacity, task, new Listener<I, V>() {
+            @Override
+            public void onResult(ItemResult<I, V> result) {
+                results.add(result);
+                if (listener != null) {
+                    listener.onResult(result);
+                }
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Like execute, but keeps no results; each one is only passed to listener.
+     */
+    static <I, V> void run(Iterator<? extends I> items, int parallelism, int queueCapacity,
+                           final Task<I, V> task, final Listener<I, V> listener) throws InterruptedException {
+        if (parallelism < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("invalid parallelism: " + parallelism + ", queueCapacity: " + queueCapacity);
+        }
+        final Semaphore slots = new Semaphore(parallelism + queueCapacity);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            while (items.hasNext()) {
+                final I item = items.next();
+                slots.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run(item, new CompletionHandler<V>() {
+                                @Override
+                                public void onCompleted(V result) {
+                                    record(new ItemResult<I, V>(item, result, null));
+                                }
+
+                                @Override
+                                public void onThrowable(Throwable t) {
+                                    record(new ItemResult<I, V>(item, null, t));
+                                }
+                            });
+                        } catch (RuntimeException e) {
+                            record(new ItemResult<I, V>(item, null, e));
+                        } finally {
+                            slots.release();
+                        }
+                    }
+
+                    private void record(ItemResult<I, V> result) {
+                        if (listener != null) {
+                            listener.onResult(result);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting for the remaining items
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
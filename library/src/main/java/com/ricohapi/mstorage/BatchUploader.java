@@ -0,0 +1,96 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.mstorage.entity.BatchProgress;
+import com.ricohapi.mstorage.entity.ItemResult;
+import com.ricohapi.mstorage.entity.MediaInfo;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads many files concurrently through MediaStorage.upload(File, ...).
+ */
+public class BatchUploader {
+    private final MediaStorage mediaStorage;
+    private final int parallelism;
+    private final int queueCapacity;
+    private Listener listener;
+
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    public interface Listener {
+        void onProgress(ItemResult<File, MediaInfo> result, BatchProgress progress);
+    }
+
+    public BatchUploader(MediaStorage mediaStorage) {
+        this(mediaStorage, DEFAULT_PARALLELISM, DEFAULT_PARALLELISM * 2);
+    }
+
+    public BatchUploader(MediaStorage mediaStorage, int parallelism, int queueCapacity) {
+        if (parallelism < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("invalid parallelism: " + parallelism + ", queueCapacity: " + queueCapacity);
+        }
+        this.mediaStorage = mediaStorage;
+        this.parallelism = parallelism;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void upload(Iterable<File> sources, CompletionHandler<List<ItemResult<File, MediaInfo>>> handler) {
+        upload(sources.iterator(), handler);
+    }
+
+    /**
+     * Blocks until every source has been uploaded or has failed, then completes the handler once
+     * with the per-item results in completion order.
+     */
+    public void upload(Iterator<File> sources, CompletionHandler<List<ItemResult<File, MediaInfo>>> handler) {
+        final long startedAt = System.currentTimeMillis();
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final Listener listener = this.listener;
+
+        List<ItemResult<File, MediaInfo>> results;
+        try {
+            results = BatchExecutor.execute(sources, parallelism, queueCapacity,
+                    new BatchExecutor.Task<File, MediaInfo>() {
+                        @Override
+                        public void run(File file, CompletionHandler<MediaInfo> itemHandler) {
+                            mediaStorage.upload(file, itemHandler);
+                        }
+                    },
+                    new BatchExecutor.Listener<File, MediaInfo>() {
+                        @Override
+                        public void onResult(ItemResult<File, MediaInfo> result) {
+                            if (result.isSucceeded()) {
+                                succeeded.incrementAndGet();
+                                bytes.addAndGet(result.getItem().length());
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                            if (listener != null) {
+                                listener.onProgress(result, new BatchProgress(succeeded.get(), failed.get(),
+                                        bytes.get(), System.currentTimeMillis() - startedAt));
+                            }
+                        }
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handler.onThrowable(e);
+            return;
+        }
+        handler.onCompleted(results);
+    }
+}
@@ -0,0 +1,199 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection settings shared by the requests of a MediaStorage.
+ * Limits the number of open connections per host, applies connect/read timeouts
+ * and counts how many responses were fully drained so that HttpURLConnection
+ * could return their sockets to its keep-alive cache.
+ * Idle keep-alive sockets are evicted by the JDK after the server's keep-alive timeout.
+ * <p>
+ * Responses are requested gzip or deflate encoded and decoded as they are read. Request bodies
+ * of post and put are gzip encoded once they reach the request compression threshold, which is
+ * off by default since not every server accepts encoded requests. The byte counters tell how much
+ * the encoding saves.
+ */
+public class ConnectionPool {
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxConnectionsPerHost;
+    private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong reusableCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong sentWireBytes = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong receivedWireBytes = new AtomicLong();
+    private volatile long requestCompressionThreshold = NO_REQUEST_COMPRESSION;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+    public static final long NO_REQUEST_COMPRESSION = -1;
+
+    private static final ConnectionPool DEFAULT = new ConnectionPool();
+
+    public ConnectionPool() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    public ConnectionPool(int connectTimeout, int readTimeout, int maxConnectionsPerHost) {
+        if (connectTimeout < 0 || readTimeout < 0 || maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("invalid connection settings: connectTimeout=" + connectTimeout
+                    + ", readTimeout=" + readTimeout + ", maxConnectionsPerHost=" + maxConnectionsPerHost);
+        }
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public static ConnectionPool getDefault() {
+        return DEFAULT;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getReusableCount() {
+        return reusableCount.get();
+    }
+
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    /**
+     * The share of finished responses whose connection was left reusable.
+     */
+    public double getReuseRatio() {
+        long reusable = reusableCount.get();
+        long total = reusable + discardedCount.get();
+        return total > 0 ? (double) reusable / total : 0;
+    }
+
+    /**
+     * Gzip encodes the bodies of post and put that are at least threshold bytes long.
+     * @param threshold the size in bytes, or NO_REQUEST_COMPRESSION
+     */
+    public void setRequestCompressionThreshold(long threshold) {
+        if (threshold < 0 && threshold != NO_REQUEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid request compression threshold: " + threshold);
+        }
+        this.requestCompressionThreshold = threshold;
+    }
+
+    public long getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * The bytes of request bodies before encoding.
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * The bytes of request bodies written to the network.
+     */
+    public long getSentWireBytes() {
+        return sentWireBytes.get();
+    }
+
+    /**
+     * The bytes of response bodies read by callers, after decoding.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * The bytes of response bodies read from the network.
+     */
+    public long getReceivedWireBytes() {
+        return receivedWireBytes.get();
+    }
+
+    /**
+     * The bytes that encoding kept off the network, in both directions.
+     */
+    public long getSavedBytes() {
+        return sentBytes.get() - sentWireBytes.get() + receivedBytes.get() - receivedWireBytes.get();
+    }
+
+    public int getActiveConnections(String host) {
+        Semaphore permits = hosts.get(host);
+        return permits == null ? 0 : maxConnectionsPerHost - permits.availablePermits();
+    }
+
+    void acquire(URL url) throws IOException {
+        Semaphore permits = permits(url.getHost());
+        try {
+            long timeout = connectTimeout > 0 ? connectTimeout : Long.MAX_VALUE;
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("no connection available for " + url.getHost()
+                        + " within " + connectTimeout + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a connection to " + url.getHost());
+        }
+        requestCount.incrementAndGet();
+    }
+
+    void release(URL url, boolean reusable) {
+        permits(url.getHost()).release();
+        if (reusable) {
+            reusableCount.incrementAndGet();
+        } else {
+            discardedCount.incrementAndGet();
+        }
+    }
+
+    void transferred(long sent, long sentWire, long received, long receivedWire) {
+        sentBytes.addAndGet(sent);
+        sentWireBytes.addAndGet(sentWire);
+        receivedBytes.addAndGet(received);
+        receivedWireBytes.addAndGet(receivedWire);
+    }
+
+    private Semaphore permits(String host) {
+        Semaphore permits = hosts.get(host);
+        if (permits == null) {
+            Semaphore created = new Semaphore(maxConnectionsPerHost);
+            permits = hosts.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+}
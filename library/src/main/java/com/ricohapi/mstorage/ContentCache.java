@@ -0,0 +1,325 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.mstorage.entity.MediaContent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A least-recently-used cache of media contents in a directory, bounded by maxBytes.
+ * Contents are written to a temporary file and renamed into place once complete, so a crash
+ * never leaves a partial entry, and hits are served from a read-only memory mapping of the file.
+ * The directory is scanned on open, so entries survive a restart.
+ * A content fetched while its entry was invalidated is not cached, so a download that raced
+ * with a delete cannot put the deleted content back.
+ */
+public class ContentCache {
+    private static final String TEMP_PREFIX = "download";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String HEX_PREFIX = "~";
+    private static final Pattern PLAIN_NAME = Pattern.compile("[A-Za-z0-9_\\-]{1,128}");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int GENERATION_SLOTS = 256;
+
+    private final File dir;
+    private final long maxBytes;
+    // media id -> length, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // bumped by every invalidation of a media id hashing to the slot; a shared slot only skips a put
+    private final long[] generations = new long[GENERATION_SLOTS];
+    private long usedBytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public ContentCache(File dir, long maxBytes) throws IOException {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("invalid cache settings: maxBytes=" + maxBytes);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("failed to create " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * @return the cached content of mediaId, mapped from its file, or null
+     */
+    public MediaContent get(String mediaId) throws IOException {
+        File file = file(mediaId);
+        // opened under the lock, so that a failure cannot be mistaken for the file of a concurrent put
+        synchronized (this) {
+            if (entries.get(mediaId) == null) {
+                missCount++;
+                return null;
+            }
+            InputStream inputStream;
+            try {
+                inputStream = open(file);
+            } catch (IOException e) {
+                // removed behind our back
+                missCount++;
+                invalidate(mediaId);
+                return null;
+            }
+            hitCount++;
+            file.setLastModified(System.currentTimeMillis());
+            return new MediaContent(inputStream);
+        }
+    }
+
+    /**
+     * Read before fetching a content, and passed back to put.
+     */
+    synchronized long generation(String mediaId) {
+        return generations[slot(mediaId)];
+    }
+
+    /**
+     * Copies inputStream into the cache as the content of mediaId and returns it served from the cache.
+     * A content larger than maxBytes, or one whose entry has been invalidated since generation was read,
+     * is not kept; it is returned from a temporary file deleted on close.
+     */
+    MediaContent put(String mediaId, InputStream inputStream, long generation) throws IOException {
+        File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, dir);
+        long length = 0;
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    length += read;
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        File file = file(mediaId);
+        synchronized (this) {
+            if (length > maxBytes || generations[slot(mediaId)] != generation) {
+                return uncached(temp);
+            }
+            Long replaced = entries.remove(mediaId);
+            if (replaced != null) {
+                usedBytes -= replaced;
+            }
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                temp.delete();
+                throw new IOException("failed to replace " + file);
+            }
+            entries.put(mediaId, length);
+            usedBytes += length;
+            evict();
+            return new MediaContent(open(file));
+        }
+    }
+
+    private static MediaContent uncached(final File temp) throws IOException {
+        return new MediaContent(new FileInputStream(temp) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                temp.delete();
+            }
+        });
+    }
+
+    public synchronized void invalidate(String mediaId) {
+        generations[slot(mediaId)]++;
+        Long length = entries.remove(mediaId);
+        if (length != null) {
+            usedBytes -= length;
+        }
+        file(mediaId).delete();
+    }
+
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < generations.length; i++) {
+            generations[i]++;
+        }
+        for (String mediaId : entries.keySet()) {
+            file(mediaId).delete();
+        }
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            usedBytes -= eldest.getValue();
+            evictionCount++;
+            // a reader that already mapped the file keeps its mapping
+            file(eldest.getKey()).delete();
+        }
+    }
+
+    private void load() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        synchronized (this) {
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    // left behind by a crash during a download
+                    file.delete();
+                    continue;
+                }
+                String mediaId = mediaId(file.getName());
+                if (mediaId == null || !file.isFile()) continue;
+                entries.put(mediaId, file.length());
+                usedBytes += file.length();
+            }
+            evict();
+        }
+    }
+
+    private static int slot(String mediaId) {
+        return mediaId.hashCode() & (GENERATION_SLOTS - 1);
+    }
+
+    private File file(String mediaId) {
+        return new File(dir, PLAIN_NAME.matcher(mediaId).matches() ? mediaId : HEX_PREFIX + hex(mediaId));
+    }
+
+    private static String mediaId(String name) {
+        if (!name.startsWith(HEX_PREFIX)) {
+            return PLAIN_NAME.matcher(name).matches() ? name : null;
+        }
+        String hex = name.substring(HEX_PREFIX.length());
+        if (hex.length() % 2 != 0) return null;
+        byte[] bytes = new byte[hex.length() / 2];
+        try {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            }
+            return new String(bytes, "UTF-8");
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String hex(String mediaId) {
+        StringBuilder builder = new StringBuilder();
+        try {
+            for (byte b : mediaId.getBytes("UTF-8")) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Maps file read-only. The channel is closed at once; the mapping stays valid until it is collected.
+     */
+    private static InputStream open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size <= Integer.MAX_VALUE) {
+                return new BufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+        } finally {
+            raf.close();
+        }
+        // too large for a single mapping
+        return new FileInputStream(file);
+    }
+
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) return -1;
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
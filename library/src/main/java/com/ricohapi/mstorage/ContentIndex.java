@@ -0,0 +1,117 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A persistent map from content digests to the ids of the media holding that content.
+ * Changes are appended to a text file, one "digest TAB mediaId" line each (an empty id removes
+ * the digest), and the file is rewritten on open when it holds more stale lines than entries.
+ */
+public class ContentIndex implements Closeable {
+    private static final String CHARSET = "UTF-8";
+    private static final char SEPARATOR = '\t';
+
+    private final File file;
+    private final Map<String, String> entries = new HashMap<>();
+    private Writer writer;
+
+    public ContentIndex(File file) throws IOException {
+        this.file = file;
+        int lines = load();
+        if (lines > 2 * entries.size()) {
+            compact();
+        }
+        this.writer = open(file, true);
+    }
+
+    /**
+     * @return the id of the media holding the content with digest, or null
+     */
+    public synchronized String get(String digest) {
+        return entries.get(digest);
+    }
+
+    public synchronized void put(String digest, String mediaId) throws IOException {
+        if (mediaId.equals(entries.put(digest, mediaId))) return;
+        append(digest, mediaId);
+    }
+
+    public synchronized void remove(String digest) throws IOException {
+        if (entries.remove(digest) == null) return;
+        append(digest, "");
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private void append(String digest, String mediaId) throws IOException {
+        writer.write(digest + SEPARATOR + mediaId + "\n");
+        writer.flush();
+    }
+
+    private int load() throws IOException {
+        if (!file.exists()) return 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+        int lines = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(SEPARATOR);
+                if (separator < 1) continue;
+                lines++;
+                String digest = line.substring(0, separator);
+                String mediaId = line.substring(separator + 1);
+                if (mediaId.isEmpty()) {
+                    entries.remove(digest);
+                } else {
+                    entries.put(digest, mediaId);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private void compact() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = open(temp, false);
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.write(entry.getKey() + SEPARATOR + entry.getValue() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("failed to replace " + file);
+        }
+    }
+
+    private static Writer open(File file, boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), CHARSET));
+    }
+}
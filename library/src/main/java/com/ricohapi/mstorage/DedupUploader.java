@@ -0,0 +1,215 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.auth.RicohAPIException;
+import com.ricohapi.mstorage.entity.MediaIndex;
+import com.ricohapi.mstorage.entity.MediaInfo;
+import com.ricohapi.mstorage.entity.MediaList;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads content only if it is not stored yet, identified by its SHA-256 digest.
+ * The digest is looked up in a local ContentIndex, then among the user metadata of the stored
+ * media, where every upload through this class records it under DIGEST_META_KEY.
+ * A File is hashed before it is sent, so an upload of known content is skipped completely.
+ * An InputStream can only be read once: it is hashed while it is uploaded, so that the next
+ * upload of the same content can be skipped.
+ */
+public class DedupUploader {
+    public static final String DIGEST_META_KEY = "user.sha256";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String DIGEST_FILTER_KEY = "meta." + DIGEST_META_KEY;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MediaStorage mediaStorage;
+    private final ContentIndex index;
+    private final AtomicLong uploadedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong skippedBytes = new AtomicLong();
+
+    public DedupUploader(MediaStorage mediaStorage, ContentIndex index) {
+        this.mediaStorage = mediaStorage;
+        this.index = index;
+    }
+
+    public long getUploadedCount() {
+        return uploadedCount.get();
+    }
+
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    public long getSkippedBytes() {
+        return skippedBytes.get();
+    }
+
+    /**
+     * Completes with the MediaInfo of the media already holding the content of file,
+     * or uploads file and completes with the new MediaInfo.
+     */
+    public void upload(File file, CompletionHandler<MediaInfo> handler) {
+        try {
+            String digest = digest(file);
+            MediaInfo existing = find(digest, file.length());
+            if (existing != null) {
+                skippedCount.incrementAndGet();
+                skippedBytes.addAndGet(file.length());
+                handler.onCompleted(existing);
+                return;
+            }
+            MediaFuture<MediaInfo> uploaded = new MediaFuture<>();
+            mediaStorage.upload(file, uploaded);
+            handler.onCompleted(record(digest, uploaded.get()));
+        } catch (ExecutionException e) {
+            handler.onThrowable(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handler.onThrowable(e);
+        } catch (IOException e) {
+            handler.onThrowable(e);
+        }
+    }
+
+    /**
+     * Uploads inputStream and records the digest of what was sent.
+     */
+    public void upload(InputStream inputStream, CompletionHandler<MediaInfo> handler) {
+        try {
+            DigestInputStream digestStream = new DigestInputStream(inputStream, newDigest());
+            MediaFuture<MediaInfo> uploaded = new MediaFuture<>();
+            mediaStorage.upload(digestStream, uploaded);
+            MediaInfo mediaInfo = uploaded.get();
+            handler.onCompleted(record(toHex(digestStream.getMessageDigest().digest()), mediaInfo));
+        } catch (ExecutionException e) {
+            handler.onThrowable(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handler.onThrowable(e);
+        } catch (IOException e) {
+            handler.onThrowable(e);
+        }
+    }
+
+    /**
+     * @return the stored media whose content has digest and length bytes, or null
+     */
+    private MediaInfo find(String digest, long length) throws IOException, InterruptedException, ExecutionException {
+        String mediaId = index.get(digest);
+        if (mediaId != null) {
+            MediaInfo mediaInfo = info(mediaId);
+            if (mediaInfo != null && mediaInfo.getBytes() == length) {
+                return mediaInfo;
+            }
+            // deleted or replaced since it was indexed
+            index.remove(digest);
+        }
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("limit", 1);
+        params.put(MediaStorage.LIST_PARAM_KEY_FILTER, Collections.singletonMap(DIGEST_FILTER_KEY, digest));
+        MediaFuture<MediaList> found = new MediaFuture<>();
+        mediaStorage.list(params, found);
+        List<MediaIndex> media = found.get().getMediaList();
+        if (media == null || media.isEmpty()) {
+            return null;
+        }
+        MediaInfo mediaInfo = info(media.get(0).getId());
+        if (mediaInfo == null || mediaInfo.getBytes() != length) {
+            return null;
+        }
+        index.put(digest, mediaInfo.getId());
+        return mediaInfo;
+    }
+
+    /**
+     * @return the MediaInfo of mediaId, or null if it does not exist anymore
+     */
+    private MediaInfo info(String mediaId) throws InterruptedException, ExecutionException {
+        MediaFuture<MediaInfo> future = new MediaFuture<>();
+        mediaStorage.info(mediaId, future);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RicohAPIException
+                    && ((RicohAPIException) e.getCause()).getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Tags the uploaded media with its digest and indexes it. The upload has succeeded at this point,
+     * so a failure to tag only means that other clients will not find the content on the server.
+     */
+    private MediaInfo record(String digest, MediaInfo mediaInfo) throws IOException {
+        uploadedCount.incrementAndGet();
+        mediaStorage.addMeta(mediaInfo.getId(), Collections.singletonMap(DIGEST_META_KEY, digest),
+                new CompletionHandler<Object>() {
+                    @Override
+                    public void onCompleted(Object result) {
+                    }
+
+                    @Override
+                    public void onThrowable(Throwable t) {
+                        // the digest is still indexed locally
+                    }
+                });
+        index.put(digest, mediaInfo.getId());
+        return mediaInfo;
+    }
+
+    static String digest(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,416 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.auth.RicohAPIException;
+import com.ricohapi.mstorage.entity.ItemResult;
+import com.ricohapi.mstorage.entity.MediaInfo;
+import com.ricohapi.mstorage.entity.SyncReport;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the files of a directory tree uploaded, in the BULK lane.
+ * A manifest records the size, modification time, SHA-256 digest and media id of every uploaded file,
+ * so a run only reads and uploads the files whose size or modification time changed, and sends no
+ * request at all when nothing did. A changed file whose digest is unchanged is not uploaded again.
+ * <p>
+ * The manifest is a text file with one "path TAB size TAB mtime TAB digest TAB mediaId" line per file,
+ * and one "TAB mediaId" line per replaced media whose deletion failed, which the next run tries again.
+ * It is rewritten through a temporary file and a rename at the end of a run that changed it.
+ */
+public class DirectorySync {
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final String CHARSET = "UTF-8";
+    private static final char SEPARATOR = '\t';
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final MediaStorage mediaStorage;
+    private final File root;
+    private final File manifestFile;
+    private final int parallelism;
+    private volatile boolean deleteRemoved;
+    private volatile boolean verify;
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final String digest;
+        final String mediaId;
+
+        Entry(long size, long modified, String digest, String mediaId) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+            this.mediaId = mediaId;
+        }
+    }
+
+    public DirectorySync(MediaStorage mediaStorage, File root, File manifestFile) {
+        this(mediaStorage, root, manifestFile, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param parallelism the number of directories listed and files uploaded at once
+     */
+    public DirectorySync(MediaStorage mediaStorage, File root, File manifestFile, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("invalid parallelism: " + parallelism);
+        }
+        this.mediaStorage = mediaStorage.withLane(RequestScheduler.Lane.BULK);
+        this.root = root;
+        this.manifestFile = manifestFile;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Deletes the media of files that were removed or replaced since the last run. Off by default.
+     */
+    public void setDeleteRemoved(boolean deleteRemoved) {
+        this.deleteRemoved = deleteRemoved;
+    }
+
+    /**
+     * Lists every media before the run and uploads again the files whose media is gone. Off by default.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Blocks until the tree has been scanned and every new or changed file has been uploaded or has failed,
+     * then completes the handler once with the report. A file that failed is tried again on the next run.
+     * The manifest is saved even when the run stops early, so that uploaded files are not uploaded again.
+     */
+    public void sync(CompletionHandler<SyncReport> handler) {
+        long startedAt = System.currentTimeMillis();
+        final Map<String, Entry> manifest = new ConcurrentHashMap<>();
+        final Set<String> pendingDeletes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        boolean dirty = false;
+        SyncReport report = null;
+        Throwable failure = null;
+        try {
+            if (!root.isDirectory()) {
+                throw new IOException("not a directory: " + root);
+            }
+            manifest.putAll(load(pendingDeletes));
+            final AtomicLong deleted = new AtomicLong();
+            if (deleteRemoved) {
+                for (String mediaId : new ArrayList<>(pendingDeletes)) {
+                    try {
+                        if (deleteMedia(mediaId)) {
+                            deleted.incrementAndGet();
+                        }
+                        pendingDeletes.remove(mediaId);
+                        dirty = true;
+                    } catch (ExecutionException e) {
+                        // still pending
+                    }
+                }
+            }
+            final Map<String, Throwable> failures = new ConcurrentHashMap<>();
+            List<String> failedDirs = new ArrayList<>();
+            Map<String, long[]> files = scan(failures, failedDirs);
+
+            final Set<String> missing = new HashSet<>();
+            if (verify) {
+                Set<String> remote = new HashSet<>();
+                MediaIterator iterator = mediaStorage.iterate(null);
+                try {
+                    while (iterator.hasNext()) {
+                        remote.add(iterator.next().getId());
+                    }
+                } finally {
+                    iterator.close();
+                }
+                for (Entry entry : manifest.values()) {
+                    if (!remote.contains(entry.mediaId)) {
+                        missing.add(entry.mediaId);
+                    }
+                }
+            }
+
+            List<String> changed = new ArrayList<>();
+            long unchanged = 0;
+            for (Map.Entry<String, long[]> file : files.entrySet()) {
+                Entry entry = manifest.get(file.getKey());
+                long[] stat = file.getValue();
+                if (entry != null && entry.size == stat[0] && entry.modified == stat[1] && !missing.contains(entry.mediaId)) {
+                    unchanged++;
+                } else {
+                    changed.add(file.getKey());
+                }
+            }
+
+            final AtomicLong touched = new AtomicLong();
+            final AtomicLong uploaded = new AtomicLong();
+            final AtomicLong uploadedBytes = new AtomicLong();
+            if (!changed.isEmpty()) {
+                dirty = true;
+                final Map<String, long[]> stats = files;
+                BatchExecutor.run(changed.iterator(), parallelism, parallelism * 2,
+                        new BatchExecutor.Task<String, Object>() {
+                            @Override
+                            public void run(String path, CompletionHandler<Object> itemHandler) {
+                                try {
+                                    long[] stat = stats.get(path);
+                                    Entry old = manifest.get(path);
+                                    String digest = DedupUploader.digest(new File(root, path));
+                                    if (old != null && digest.equals(old.digest) && !missing.contains(old.mediaId)) {
+                                        manifest.put(path, new Entry(stat[0], stat[1], digest, old.mediaId));
+                                        touched.incrementAndGet();
+                                    } else {
+                                        MediaFuture<MediaInfo> future = new MediaFuture<>();
+                                        mediaStorage.upload(new File(root, path), future);
+                                        MediaInfo mediaInfo = future.get();
+                                        manifest.put(path, new Entry(stat[0], stat[1], digest, mediaInfo.getId()));
+                                        uploaded.incrementAndGet();
+                                        uploadedBytes.addAndGet(stat[0]);
+                                        if (old != null && deleteRemoved && !old.mediaId.equals(mediaInfo.getId())
+                                                && !missing.contains(old.mediaId)) {
+                                            // the file is uploaded; a failed delete is left to the next run
+                                            pendingDeletes.add(old.mediaId);
+                                            try {
+                                                if (deleteMedia(old.mediaId)) {
+                                                    deleted.incrementAndGet();
+                                                }
+                                                pendingDeletes.remove(old.mediaId);
+                                            } catch (ExecutionException e) {
+                                                // still pending
+                                            }
+                                        }
+                                    }
+                                    itemHandler.onCompleted(path);
+                                } catch (IOException e) {
+                                    itemHandler.onThrowable(e);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    itemHandler.onThrowable(e);
+                                } catch (ExecutionException e) {
+                                    itemHandler.onThrowable(e.getCause());
+                                }
+                            }
+                        },
+                        new BatchExecutor.Listener<String, Object>() {
+                            @Override
+                            public void onResult(ItemResult<String, Object> result) {
+                                if (!result.isSucceeded()) {
+                                    failures.put(result.getItem(), result.getThrowable());
+                                }
+                            }
+                        });
+            }
+
+            for (String path : new ArrayList<>(manifest.keySet())) {
+                if (files.containsKey(path) || isUnder(path, failedDirs)) continue;
+                Entry entry = manifest.get(path);
+                try {
+                    if (deleteRemoved && deleteMedia(entry.mediaId)) {
+                        deleted.incrementAndGet();
+                    }
+                    manifest.remove(path);
+                    dirty = true;
+                } catch (ExecutionException e) {
+                    failures.put(path, e.getCause());
+                }
+            }
+
+            report = new SyncReport(files.size(), unchanged + touched.get(), uploaded.get(), deleted.get(),
+                    uploadedBytes.get(), System.currentTimeMillis() - startedAt,
+                    new TreeMap<String, Throwable>(failures));
+        } catch (IllegalStateException e) {
+            // thrown by MediaIterator when a page cannot be fetched
+            failure = e.getCause() == null ? e : e.getCause();
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } finally {
+            if (dirty) {
+                try {
+                    save(manifest, pendingDeletes);
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            handler.onThrowable(failure);
+        } else {
+            handler.onCompleted(report);
+        }
+    }
+
+    /**
+     * @return true when the media was deleted, false when it was already gone
+     */
+    private boolean deleteMedia(String mediaId) throws InterruptedException, ExecutionException {
+        MediaFuture<Object> future = new MediaFuture<>();
+        mediaStorage.delete(mediaId, future);
+        try {
+            future.get();
+            return true;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RicohAPIException
+                    && ((RicohAPIException) e.getCause()).getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Lists the tree one level at a time, the directories of a level in parallel.
+     * @return the size and modification time of every file by its path relative to root
+     */
+    private Map<String, long[]> scan(final Map<String, Throwable> failures, List<String> failedDirs)
+            throws IOException, InterruptedException {
+        final Map<String, long[]> files = new ConcurrentHashMap<>();
+        final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        visited.add(root.getCanonicalPath());
+        final String manifestPath = manifestFile.getAbsolutePath();
+        List<String> level = Collections.singletonList("");
+        while (!level.isEmpty()) {
+            final List<String> next = Collections.synchronizedList(new ArrayList<String>());
+            List<ItemResult<String, Object>> results = BatchExecutor.execute(level.iterator(), parallelism, level.size(),
+                    new BatchExecutor.Task<String, Object>() {
+                        @Override
+                        public void run(String dir, CompletionHandler<Object> dirHandler) {
+                            File[] children = new File(root, dir).listFiles();
+                            if (children == null) {
+                                dirHandler.onThrowable(new IOException("failed to list " + new File(root, dir)));
+                                return;
+                            }
+                            try {
+                                for (File child : children) {
+                                    String path = dir.isEmpty() ? child.getName() : dir + "/" + child.getName();
+                                    if (child.isDirectory()) {
+                                        // skip links back into the tree
+                                        if (visited.add(child.getCanonicalPath())) {
+                                            next.add(path);
+                                        }
+                                    } else if (child.isFile()) {
+                                        String absolute = child.getAbsolutePath();
+                                        if (!absolute.equals(manifestPath) && !absolute.equals(manifestPath + TEMP_SUFFIX)) {
+                                            files.put(path, new long[] {child.length(), child.lastModified()});
+                                        }
+                                    }
+                                }
+                                dirHandler.onCompleted(dir);
+                            } catch (IOException e) {
+                                dirHandler.onThrowable(e);
+                            }
+                        }
+                    }, null);
+            for (ItemResult<String, Object> result : results) {
+                if (!result.isSucceeded()) {
+                    if (result.getItem().isEmpty()) {
+                        throw new IOException("failed to list " + root, result.getThrowable());
+                    }
+                    failures.put(result.getItem(), result.getThrowable());
+                    failedDirs.add(result.getItem());
+                }
+            }
+            level = new ArrayList<>(next);
+        }
+        return files;
+    }
+
+    private static boolean isUnder(String path, List<String> dirs) {
+        for (String dir : dirs) {
+            if (path.startsWith(dir + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param pendingDeletes receives the media ids still to be deleted
+     */
+    private Map<String, Entry> load(Set<String> pendingDeletes) throws IOException {
+        Map<String, Entry> manifest = new TreeMap<>();
+        if (!manifestFile.exists()) return manifest;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+                if (fields.length == 2 && fields[0].isEmpty() && !fields[1].isEmpty()) {
+                    pendingDeletes.add(fields[1]);
+                    continue;
+                }
+                if (fields.length != 5) continue;
+                try {
+                    manifest.put(unescape(fields[0]), new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[3], fields[4]));
+                } catch (NumberFormatException e) {
+                    // a damaged line: the file is uploaded again
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    private void save(Map<String, Entry> manifest, Set<String> pendingDeletes) throws IOException {
+        File temp = new File(manifestFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temp);
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, CHARSET));
+        try {
+            for (Map.Entry<String, Entry> item : new TreeMap<>(manifest).entrySet()) {
+                Entry entry = item.getValue();
+                out.write(escape(item.getKey()) + SEPARATOR + entry.size + SEPARATOR + entry.modified
+                        + SEPARATOR + entry.digest + SEPARATOR + entry.mediaId + "\n");
+            }
+            for (String mediaId : new TreeSet<>(pendingDeletes)) {
+                out.write(SEPARATOR + mediaId + "\n");
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(manifestFile) && !(manifestFile.delete() && temp.renameTo(manifestFile))) {
+            temp.delete();
+            throw new IOException("failed to replace " + manifestFile);
+        }
+    }
+
+    private static String escape(String path) {
+        return path.replace("%", "%25").replace("\t", "%09").replace("\n", "%0A").replace("\r", "%0D");
+    }
+
+    private static String unescape(String path) {
+        return path.replace("%0D", "\r").replace("%0A", "\n").replace("%09", "\t").replace("%25", "%");
+    }
+}
@@ -0,0 +1,41 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Sends the HTTP requests of MediaStorage.
+ * Each method returns once the request has been sent; the caller reads the status and body
+ * from the returned response and must close it.
+ */
+public interface HttpTransport {
+
+    /**
+     * @param queryParams appended to url as a query string, may be null
+     */
+    TransportResponse get(String url, Map<String, ?> queryParams, Map<String, String> header) throws IOException;
+
+    TransportResponse post(String url, Map<String, String> header, Map<String, ?> params,
+                           RicohAPIRequest.ParamType paramType) throws IOException;
+
+    TransportResponse put(String url, Map<String, String> header, String value) throws IOException;
+
+    TransportResponse delete(String url, Map<String, String> header) throws IOException;
+
+    /**
+     * @param contentLength the number of bytes to send, or RicohAPIRequest.UNKNOWN_LENGTH
+     */
+    TransportResponse upload(String url, Map<String, String> header, InputStream inputStream,
+                             long contentLength) throws IOException;
+
+    /**
+     * Like get, but the response body is meant to be streamed through getInputStream.
+     */
+    TransportResponse download(String url, Map<String, String> header) throws IOException;
+}
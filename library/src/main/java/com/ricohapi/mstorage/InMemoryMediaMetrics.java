@@ -0,0 +1,142 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps latency histograms and counters per operation in memory, to be read by a scraper.
+ * Each histogram takes about 18 KB, so they are only allocated once their operation or phase is used.
+ */
+public class InMemoryMediaMetrics implements MediaMetrics {
+    private static final int OPERATIONS = Operation.values().length;
+    private static final int PHASES = Phase.values().length;
+
+    private final AtomicReferenceArray<LatencyHistogram> latencies = new AtomicReferenceArray<>(OPERATIONS * (PHASES + 1));
+    private final AtomicInteger[] inFlight = new AtomicInteger[OPERATIONS];
+    private final AtomicLong[] failures = new AtomicLong[OPERATIONS];
+    private final AtomicLong[] retries = new AtomicLong[OPERATIONS];
+    private final AtomicLong[] bytesSent = new AtomicLong[OPERATIONS];
+    private final AtomicLong[] bytesReceived = new AtomicLong[OPERATIONS];
+    private final List<ConcurrentMap<Integer, AtomicLong>> responseCodes = new ArrayList<>(OPERATIONS);
+
+    public InMemoryMediaMetrics() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            inFlight[i] = new AtomicInteger();
+            failures[i] = new AtomicLong();
+            retries[i] = new AtomicLong();
+            bytesSent[i] = new AtomicLong();
+            bytesReceived[i] = new AtomicLong();
+            responseCodes.add(new ConcurrentHashMap<Integer, AtomicLong>());
+        }
+    }
+
+    @Override
+    public void operationStarted(Operation operation) {
+        inFlight[operation.ordinal()].incrementAndGet();
+    }
+
+    @Override
+    public void operationFinished(Operation operation, long elapsedNanos, boolean succeeded) {
+        int i = operation.ordinal();
+        inFlight[i].decrementAndGet();
+        histogram(i * (PHASES + 1)).record(elapsedNanos);
+        if (!succeeded) {
+            failures[i].incrementAndGet();
+        }
+    }
+
+    @Override
+    public void phaseCompleted(Operation operation, Phase phase, long elapsedNanos) {
+        getLatency(operation, phase).record(elapsedNanos);
+    }
+
+    @Override
+    public void responseReceived(Operation operation, int responseCode) {
+        ConcurrentMap<Integer, AtomicLong> counts = responseCodes.get(operation.ordinal());
+        AtomicLong count = counts.get(responseCode);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = counts.putIfAbsent(responseCode, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    @Override
+    public void bytesTransferred(Operation operation, long sent, long received) {
+        int i = operation.ordinal();
+        bytesSent[i].addAndGet(sent);
+        bytesReceived[i].addAndGet(received);
+    }
+
+    @Override
+    public void retried(Operation operation) {
+        retries[operation.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * @return the durations of the whole operation, from its call to the completion of its handler
+     */
+    public LatencyHistogram getLatency(Operation operation) {
+        return histogram(operation.ordinal() * (PHASES + 1));
+    }
+
+    public LatencyHistogram getLatency(Operation operation, Phase phase) {
+        return histogram(operation.ordinal() * (PHASES + 1) + 1 + phase.ordinal());
+    }
+
+    public int getInFlight(Operation operation) {
+        return inFlight[operation.ordinal()].get();
+    }
+
+    public long getFailureCount(Operation operation) {
+        return failures[operation.ordinal()].get();
+    }
+
+    public long getRetryCount(Operation operation) {
+        return retries[operation.ordinal()].get();
+    }
+
+    public long getBytesSent(Operation operation) {
+        return bytesSent[operation.ordinal()].get();
+    }
+
+    public long getBytesReceived(Operation operation) {
+        return bytesReceived[operation.ordinal()].get();
+    }
+
+    /**
+     * @return the number of responses per HTTP status code, sorted by code
+     */
+    public Map<Integer, Long> getResponseCodeCounts(Operation operation) {
+        Map<Integer, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : responseCodes.get(operation.ordinal()).entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    private LatencyHistogram histogram(int index) {
+        LatencyHistogram histogram = latencies.get(index);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = latencies.compareAndSet(index, null, created) ? created : latencies.get(index);
+        }
+        return histogram;
+    }
+}
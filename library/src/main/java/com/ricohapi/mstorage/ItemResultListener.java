@@ -0,0 +1,16 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.mstorage.entity.ItemResult;
+
+/**
+ * Receives the result of each item of a bulk operation as soon as it completes.
+ * It is called on the threads that run the items.
+ */
+public interface ItemResultListener<I, V> {
+    void onResult(ItemResult<I, V> result);
+}
@@ -0,0 +1,173 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, least-recently-used cache of info and meta responses.
+ * Entries expire after ttlMillis; an expired entry that carried an ETag is revalidated
+ * with If-None-Match instead of being fetched again.
+ * Cached objects are shared between callers and should not be modified.
+ * A response fetched while its entry was invalidated is not cached, so a request that raced
+ * with a write or a delete cannot put the old value back.
+ */
+public class MediaCache {
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+    // bumped by every invalidation of a key hashing to the slot; a shared slot only skips a put
+    private final long[] generations = new long[GENERATION_SLOTS];
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long revalidationCount = 0;
+
+    private static final int GENERATION_SLOTS = 256;
+
+    static final String INFO = "info";
+    static final String META = "meta";
+
+    static class Entry {
+        private final Object value;
+        private final String etag;
+        private long expiresAt;
+
+        Entry(Object value, String etag, long expiresAt) {
+            this.value = value;
+            this.etag = etag;
+            this.expiresAt = expiresAt;
+        }
+
+        Object getValue() {
+            return value;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        boolean isFresh(long now) {
+            return now - expiresAt < 0;
+        }
+    }
+
+    public MediaCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1 || ttlMillis < 0) {
+            throw new IllegalArgumentException("invalid cache settings: maxEntries=" + maxEntries + ", ttlMillis=" + ttlMillis);
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MediaCache.Entry> eldest) {
+                if (size() > MediaCache.this.maxEntries) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the entry for mediaId, fresh or expired, or null. Counts a hit only for a fresh entry.
+     */
+    synchronized Entry lookup(String mediaId, String kind, long now) {
+        Entry entry = entries.get(key(mediaId, kind));
+        if (entry != null && entry.isFresh(now)) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * Read before fetching a value, and passed back to put.
+     */
+    synchronized long generation(String mediaId, String kind) {
+        return generations[slot(key(mediaId, kind))];
+    }
+
+    /**
+     * Caches value unless its entry has been invalidated since generation was read.
+     */
+    synchronized void put(String mediaId, String kind, Object value, String etag, long generation) {
+        String key = key(mediaId, kind);
+        if (generations[slot(key)] != generation) return;
+        entries.put(key, new Entry(value, etag, System.nanoTime() + ttlNanos));
+    }
+
+    synchronized void revalidated(Entry entry) {
+        revalidationCount++;
+        entry.expiresAt = System.nanoTime() + ttlNanos;
+    }
+
+    synchronized void invalidate(String mediaId, String kind) {
+        String key = key(mediaId, kind);
+        generations[slot(key)]++;
+        entries.remove(key);
+    }
+
+    public synchronized void invalidate(String mediaId) {
+        invalidate(mediaId, INFO);
+        invalidate(mediaId, META);
+    }
+
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < generations.length; i++) {
+            generations[i]++;
+        }
+        entries.clear();
+    }
+
+    /**
+     * Drops every expired entry that cannot be revalidated.
+     */
+    public synchronized void purgeExpired() {
+        long now = System.nanoTime();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.isFresh(now) && entry.getEtag() == null) {
+                iterator.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getRevalidationCount() {
+        return revalidationCount;
+    }
+
+    private static int slot(String key) {
+        return (key.hashCode() & 0x7fffffff) % GENERATION_SLOTS;
+    }
+
+    private static String key(String mediaId, String kind) {
+        return mediaId + "/" + kind;
+    }
+}
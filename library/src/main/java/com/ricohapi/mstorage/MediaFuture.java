@@ -0,0 +1,132 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future that is completed through the CompletionHandler callbacks of MediaStorage.
+ */
+public class MediaFuture<T> implements Future<T>, CompletionHandler<T> {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final List<CompletionHandler<? super T>> handlers = new ArrayList<>();
+    private boolean done = false;
+    private boolean cancelled = false;
+    private T result;
+    private Throwable throwable;
+
+    @Override
+    public void onCompleted(T result) {
+        List<CompletionHandler<? super T>> toNotify;
+        synchronized (this) {
+            if (done) return;
+            this.result = result;
+            toNotify = finish();
+        }
+        for (CompletionHandler<? super T> handler : toNotify) {
+            handler.onCompleted(result);
+        }
+    }
+
+    @Override
+    public void onThrowable(Throwable t) {
+        List<CompletionHandler<? super T>> toNotify;
+        synchronized (this) {
+            if (done) return;
+            this.throwable = t;
+            toNotify = finish();
+        }
+        for (CompletionHandler<? super T> handler : toNotify) {
+            handler.onThrowable(t);
+        }
+    }
+
+    /**
+     * Registers a handler that is called once this future completes.
+     * If it has already completed, the handler is called immediately on the calling thread.
+     */
+    public MediaFuture<T> addHandler(CompletionHandler<? super T> handler) {
+        synchronized (this) {
+            if (!done) {
+                handlers.add(handler);
+                return this;
+            }
+        }
+        if (throwable != null) {
+            handler.onThrowable(throwable);
+        } else {
+            handler.onCompleted(result);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        CancellationException cancellation = new CancellationException();
+        List<CompletionHandler<? super T>> toNotify;
+        synchronized (this) {
+            if (done) return false;
+            cancelled = true;
+            this.throwable = cancellation;
+            toNotify = finish();
+        }
+        for (CompletionHandler<? super T> handler : toNotify) {
+            handler.onThrowable(cancellation);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    private List<CompletionHandler<? super T>> finish() {
+        done = true;
+        latch.countDown();
+        List<CompletionHandler<? super T>> toNotify = new ArrayList<>(handlers);
+        handlers.clear();
+        return toNotify;
+    }
+
+    private synchronized T report() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (throwable != null) {
+            throw new ExecutionException(throwable);
+        }
+        return result;
+    }
+}
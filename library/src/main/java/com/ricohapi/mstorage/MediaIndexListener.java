@@ -0,0 +1,15 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.mstorage.entity.MediaIndex;
+
+/**
+ * Receives the media of a list result one by one while the response is being parsed.
+ */
+public interface MediaIndexListener {
+    void onMediaIndex(MediaIndex mediaIndex);
+}
@@ -0,0 +1,124 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.mstorage.entity.MediaIndex;
+import com.ricohapi.mstorage.entity.MediaList;
+import com.ricohapi.mstorage.entity.Paging;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Iterates over every media of a list or search result, fetching pages on demand.
+ * While a page is being consumed, the next one is fetched in the background.
+ * A failed page fetch surfaces as an IllegalStateException from hasNext or next.
+ * Call close to drop the prefetched page when stopping early.
+ * A "before" cursor applies to the first page only; later pages follow "after".
+ */
+public class MediaIterator implements Iterator<MediaIndex>, Closeable {
+    private final MediaStorage mediaStorage;
+    private final Map<String, Object> params;
+    private final Executor executor;
+    private Iterator<MediaIndex> page = Collections.<MediaIndex>emptyIterator();
+    private MediaFuture<MediaList> nextPage;
+    private boolean closed = false;
+
+    public static final String PARAM_KEY_AFTER = "after";
+    public static final String PARAM_KEY_BEFORE = "before";
+
+    MediaIterator(MediaStorage mediaStorage, Map<String, ?> params, Executor executor) {
+        this.mediaStorage = mediaStorage;
+        Map<String, Object> firstParams = params == null ? new HashMap<String, Object>() : new HashMap<String, Object>(params);
+        this.params = new HashMap<>(firstParams);
+        this.params.remove(PARAM_KEY_BEFORE);
+        this.executor = executor;
+        this.nextPage = fetch(firstParams);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext()) {
+            if (closed || nextPage == null) {
+                return false;
+            }
+            MediaList mediaList = await(nextPage);
+            nextPage = null;
+            List<MediaIndex> media = mediaList.getMediaList();
+            if (media == null || media.isEmpty()) {
+                return false;
+            }
+            if (hasNextPage(mediaList.getPaging())) {
+                Map<String, Object> nextParams = new HashMap<>(params);
+                nextParams.put(PARAM_KEY_AFTER, media.get(media.size() - 1).getId());
+                nextPage = fetch(nextParams);
+            }
+            page = media.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public MediaIndex next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * Stops the iteration. A page that is still being fetched is discarded.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        page = Collections.<MediaIndex>emptyIterator();
+        if (nextPage != null) {
+            nextPage.cancel(false);
+            nextPage = null;
+        }
+    }
+
+    private MediaFuture<MediaList> fetch(final Map<String, Object> pageParams) {
+        final MediaFuture<MediaList> future = new MediaFuture<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!future.isDone()) {
+                    mediaStorage.list(pageParams, future);
+                }
+            }
+        });
+        return future;
+    }
+
+    private static boolean hasNextPage(Paging paging) {
+        return paging != null && paging.getNext() != null && !paging.getNext().isEmpty();
+    }
+
+    private static MediaList await(MediaFuture<MediaList> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while fetching a page", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("failed to fetch a page: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.mstorage.entity.MediaIndex;
+import com.ricohapi.mstorage.entity.Paging;
+
+import net.arnx.jsonic.JSON;
+import net.arnx.jsonic.JSONEventType;
+import net.arnx.jsonic.JSONReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses a list or search response from its stream, handing each media to a listener
+ * as soon as it has been read instead of building the whole page first.
+ */
+class MediaListReader {
+    private static final String MEDIA = "media";
+    private static final String PAGING = "paging";
+    private static final int FIELD_DEPTH = 2;
+    private static final int ELEMENT_DEPTH = 3;
+
+    private MediaListReader() {
+    }
+
+    /**
+     * @return the paging of the response, or null if it has none
+     */
+    static Paging read(InputStream inputStream, MediaIndexListener listener) throws IOException {
+        JSONReader reader = new JSON().getReader(inputStream);
+        String field = null;
+        Paging paging = null;
+        JSONEventType type;
+        while ((type = reader.next()) != null) {
+            if (type == JSONEventType.NAME && reader.getDepth() == FIELD_DEPTH) {
+                field = reader.getString();
+            } else if (type == JSONEventType.START_OBJECT) {
+                if (reader.getDepth() == FIELD_DEPTH && PAGING.equals(field)) {
+                    paging = reader.getValue(Paging.class);
+                } else if (reader.getDepth() == ELEMENT_DEPTH && MEDIA.equals(field)) {
+                    listener.onMediaIndex(reader.getValue(MediaIndex.class));
+                }
+            }
+        }
+        return paging;
+    }
+}
@@ -0,0 +1,79 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+/**
+ * Receives timings and counters of the operations of a MediaStorage.
+ * Methods are called on the request path, so implementations must be cheap and thread safe.
+ * Phases, bytes and response codes are reported by the default URLConnectionTransport.
+ */
+public interface MediaMetrics {
+
+    /**
+     * Reports nothing. MediaStorage does not trace its operations at all with this instance.
+     */
+    MediaMetrics NONE = new MediaMetrics() {
+        @Override
+        public void operationStarted(Operation operation) {
+        }
+
+        @Override
+        public void operationFinished(Operation operation, long elapsedNanos, boolean succeeded) {
+        }
+
+        @Override
+        public void phaseCompleted(Operation operation, Phase phase, long elapsedNanos) {
+        }
+
+        @Override
+        public void responseReceived(Operation operation, int responseCode) {
+        }
+
+        @Override
+        public void bytesTransferred(Operation operation, long sent, long received) {
+        }
+
+        @Override
+        public void retried(Operation operation) {
+        }
+    };
+
+    enum Operation {
+        UPLOAD,
+        DOWNLOAD,
+        LIST,
+        DELETE,
+        INFO,
+        META,
+        ADD_META,
+        REMOVE_META
+    }
+
+    enum Phase {
+        /** Opening the connection, including the TLS handshake. */
+        CONNECT,
+        /** Writing the request body. */
+        WRITE,
+        /** From the end of the request to the response status. */
+        FIRST_BYTE,
+        /** From the response status to the response being closed. */
+        READ,
+        /** Decoding JSON, which also reads the body as it is decoded from the stream. */
+        DECODE
+    }
+
+    void operationStarted(Operation operation);
+
+    void operationFinished(Operation operation, long elapsedNanos, boolean succeeded);
+
+    void phaseCompleted(Operation operation, Phase phase, long elapsedNanos);
+
+    void responseReceived(Operation operation, int responseCode);
+
+    void bytesTransferred(Operation operation, long sent, long received);
+
+    void retried(Operation operation);
+}
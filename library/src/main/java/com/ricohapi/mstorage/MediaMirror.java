@@ -0,0 +1,609 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.auth.RicohAPIException;
+import com.ricohapi.mstorage.entity.CompactMetaMap;
+import com.ricohapi.mstorage.entity.ItemResult;
+import com.ricohapi.mstorage.entity.MediaIndex;
+import com.ricohapi.mstorage.entity.MediaInfo;
+import com.ricohapi.mstorage.entity.MediaList;
+import com.ricohapi.mstorage.entity.MediaMeta;
+import com.ricohapi.mstorage.entity.MediaRecord;
+import com.ricohapi.mstorage.entity.Paging;
+
+import net.arnx.jsonic.JSON;
+import net.arnx.jsonic.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A local copy of the information and metadata of every media, kept in a snapshot file.
+ * It is filled by sync, kept current by the upload, addMeta, removeMeta and delete calls of the
+ * MediaStorage it is set on, and answers search filters on user, exif and gpano metadata without
+ * a request. MediaStorage.list uses it for searches while the last sync is younger than maxAgeMillis.
+ * The mirror does not reconcile by itself: changes made by other clients are only seen after the
+ * next sync, so the caller schedules sync, for example every maxAgeMillis.
+ */
+public class MediaMirror implements Closeable {
+    public static final long DEFAULT_MAX_AGE = 10 * 60 * 1000;
+    public static final int DEFAULT_SYNC_PARALLELISM = 4;
+    public static final int DEFAULT_LIMIT = 25;
+
+    private static final String FIELD_PREFIX = "meta.";
+    private static final String PARAM_KEY_LIMIT = "limit";
+    private static final String PARAM_KEY_AFTER = "after";
+    private static final String PARAM_KEY_BEFORE = "before";
+    private static final int NOT_FOUND = 404;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private final File file;
+    private final long maxAgeMillis;
+
+    private Map<String, Entry> entries = new HashMap<>();
+    // "meta.user.key" -> value -> ids
+    private Map<String, Map<String, Set<String>>> postings = new HashMap<>();
+    private long nextSequence;
+    private long syncedAt;
+    // counts the changes; the snapshot file holds those up to savedChanges
+    private long changes;
+    private long savedChanges;
+    // serializes the writers of the snapshot file
+    private final Object saveLock = new Object();
+    // changes made while a sync is running, replayed on its result
+    private List<Runnable> journal;
+
+    /**
+     * Loads the snapshot in file if it exists.
+     */
+    public MediaMirror(File file) throws IOException {
+        this(file, DEFAULT_MAX_AGE);
+    }
+
+    public MediaMirror(File file, long maxAgeMillis) throws IOException {
+        this.file = file;
+        this.maxAgeMillis = maxAgeMillis;
+        load();
+    }
+
+    private static class Entry {
+        final MediaRecord record;
+        final long sequence;
+
+        Entry(MediaRecord record, long sequence) {
+            this.record = record;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * The contents of the snapshot file.
+     */
+    public static class Snapshot {
+        private long syncedAt;
+        private List<MediaRecord> media = new ArrayList<>();
+
+        public long getSyncedAt() {
+            return syncedAt;
+        }
+
+        public void setSyncedAt(long syncedAt) {
+            this.syncedAt = syncedAt;
+        }
+
+        public List<MediaRecord> getMedia() {
+            return media;
+        }
+
+        public void setMedia(List<MediaRecord> media) {
+            this.media = media == null ? new ArrayList<MediaRecord>() : media;
+        }
+    }
+
+    /**
+     * @return the time of the last successful sync in milliseconds since the epoch, or 0
+     */
+    public synchronized long getSyncedAt() {
+        return syncedAt;
+    }
+
+    public synchronized boolean isFresh() {
+        return syncedAt > 0 && System.currentTimeMillis() - syncedAt <= maxAgeMillis;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the record of mediaId, or null
+     */
+    public synchronized MediaRecord get(String mediaId) {
+        Entry entry = entries.get(mediaId);
+        return entry == null ? null : entry.record;
+    }
+
+    /**
+     * Lists every media with mediaStorage, fetches its information and metadata with up to
+     * parallelism concurrent requests, replaces the contents of this mirror and writes the snapshot.
+     * Completes with the number of media. Changes reported while the sync runs are applied on top of its result.
+     */
+    public void sync(MediaStorage mediaStorage, CompletionHandler<Integer> handler) {
+        sync(mediaStorage, DEFAULT_SYNC_PARALLELISM, handler);
+    }
+
+    public void sync(final MediaStorage mediaStorage, int parallelism, CompletionHandler<Integer> handler) {
+        synchronized (this) {
+            if (journal != null) {
+                handler.onThrowable(new IllegalStateException("a sync is already running"));
+                return;
+            }
+            journal = new ArrayList<>();
+        }
+        try {
+            long startedAt = System.currentTimeMillis();
+            List<String> ids = new ArrayList<>();
+            MediaIterator iterator = mediaStorage.iterate(null);
+            try {
+                while (iterator.hasNext()) {
+                    ids.add(iterator.next().getId());
+                }
+            } finally {
+                iterator.close();
+            }
+
+            List<ItemResult<String, MediaRecord>> results = BatchExecutor.execute(ids.iterator(), parallelism, ids.size(),
+                    new BatchExecutor.Task<String, MediaRecord>() {
+                        @Override
+                        public void run(String mediaId, CompletionHandler<MediaRecord> recordHandler) {
+                            try {
+                                recordHandler.onCompleted(fetch(mediaStorage, mediaId));
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                recordHandler.onThrowable(e);
+                            } catch (ExecutionException e) {
+                                recordHandler.onThrowable(e.getCause());
+                            }
+                        }
+                    }, null);
+
+            Map<String, MediaRecord> records = new HashMap<>();
+            for (ItemResult<String, MediaRecord> result : results) {
+                if (!result.isSucceeded()) {
+                    abort(handler, result.getThrowable());
+                    return;
+                }
+                if (result.getValue() != null) {
+                    records.put(result.getItem(), result.getValue());
+                }
+            }
+            int count;
+            synchronized (this) {
+                clear();
+                for (String mediaId : ids) {
+                    MediaRecord record = records.get(mediaId);
+                    if (record != null) {
+                        insert(record);
+                    }
+                }
+                for (Runnable change : journal) {
+                    change.run();
+                }
+                journal = null;
+                syncedAt = startedAt;
+                changes++;
+                count = entries.size();
+            }
+            save();
+            handler.onCompleted(count);
+        } catch (IllegalStateException e) {
+            // thrown by MediaIterator when a page cannot be fetched
+            abort(handler, e.getCause() == null ? e : e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(handler, e);
+        } catch (IOException e) {
+            handler.onThrowable(e);
+        }
+    }
+
+    private void abort(CompletionHandler<Integer> handler, Throwable t) {
+        synchronized (this) {
+            journal = null;
+        }
+        handler.onThrowable(t);
+    }
+
+    /**
+     * @return the record of mediaId, or null when it was deleted after being listed
+     */
+    private static MediaRecord fetch(MediaStorage mediaStorage, String mediaId)
+            throws InterruptedException, ExecutionException {
+        MediaFuture<MediaInfo> info = new MediaFuture<>();
+        mediaStorage.info(mediaId, info);
+        MediaFuture<MediaMeta> meta = new MediaFuture<>();
+        try {
+            MediaInfo mediaInfo = info.get();
+            mediaStorage.meta(mediaId, meta);
+            return new MediaRecord(mediaInfo, meta.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RicohAPIException
+                    && ((RicohAPIException) e.getCause()).getStatusCode() == NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Answers a list request from the mirror. params takes the same "filter", "limit", "after"
+     * and "before" keys as MediaStorage.list; media are returned in the order of the last sync
+     * followed by those uploaded since, and filter values must match exactly.
+     * @return the matching page, or null when the filter uses a field the mirror does not hold or a value
+     * that is not a plain string, such as an operator
+     */
+    public synchronized MediaList search(Map<String, ?> params) {
+        Object filter = params == null ? null : params.get(MediaStorage.LIST_PARAM_KEY_FILTER);
+        if (filter != null && !(filter instanceof Map)) {
+            return null;
+        }
+        List<Entry> matched = new ArrayList<>();
+        if (filter == null || ((Map<?, ?>) filter).isEmpty()) {
+            matched.addAll(entries.values());
+        } else {
+            Map<?, ?> conditions = (Map<?, ?>) filter;
+            Set<String> smallest = null;
+            for (Map.Entry<?, ?> condition : conditions.entrySet()) {
+                String field = String.valueOf(condition.getKey());
+                if (split(field) == null || !(condition.getValue() instanceof String)) {
+                    return null;
+                }
+                Set<String> ids = lookup(field, (String) condition.getValue());
+                if (smallest == null || ids.size() < smallest.size()) {
+                    smallest = ids;
+                }
+            }
+            for (String mediaId : smallest) {
+                Entry entry = entries.get(mediaId);
+                if (matches(entry.record, conditions)) {
+                    matched.add(entry);
+                }
+            }
+        }
+        Collections.sort(matched, ORDER);
+        return page(matched, params);
+    }
+
+    private static MediaList page(List<Entry> matched, Map<String, ?> params) {
+        int limit = DEFAULT_LIMIT;
+        String after = null;
+        String before = null;
+        if (params != null) {
+            if (params.get(PARAM_KEY_LIMIT) != null) {
+                limit = Integer.parseInt(String.valueOf(params.get(PARAM_KEY_LIMIT)));
+            }
+            after = params.get(PARAM_KEY_AFTER) == null ? null : String.valueOf(params.get(PARAM_KEY_AFTER));
+            before = params.get(PARAM_KEY_BEFORE) == null ? null : String.valueOf(params.get(PARAM_KEY_BEFORE));
+        }
+        int from = 0;
+        int to = matched.size();
+        if (after != null) {
+            from = indexOf(matched, after) + 1;
+            to = Math.min(to, from + limit);
+        } else if (before != null) {
+            to = Math.max(0, indexOf(matched, before));
+            from = Math.max(0, to - limit);
+        } else {
+            to = Math.min(to, limit);
+        }
+
+        List<MediaIndex> media = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            MediaIndex mediaIndex = new MediaIndex();
+            mediaIndex.setId(matched.get(i).record.getId());
+            media.add(mediaIndex);
+        }
+        String next = to < matched.size() && !media.isEmpty() ? media.get(media.size() - 1).getId() : null;
+        String previous = from > 0 && !media.isEmpty() ? media.get(0).getId() : null;
+        Paging paging = new Paging();
+        paging.setNext(next);
+        paging.setPrevious(previous);
+        return new MediaList(media, paging);
+    }
+
+    private static int indexOf(List<Entry> matched, String mediaId) {
+        for (int i = 0; i < matched.size(); i++) {
+            if (mediaId.equals(matched.get(i).record.getId())) {
+                return i;
+            }
+        }
+        return matched.size();
+    }
+
+    private static boolean matches(MediaRecord record, Map<?, ?> conditions) {
+        for (Map.Entry<?, ?> condition : conditions.entrySet()) {
+            String[] field = split(String.valueOf(condition.getKey()));
+            String value = fields(record, field[0]).get(field[1]);
+            if (!condition.getValue().equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Set<String> lookup(String field, String value) {
+        Map<String, Set<String>> values = postings.get(field);
+        Set<String> ids = values == null ? null : values.get(value);
+        return ids == null ? Collections.<String>emptySet() : ids;
+    }
+
+    /**
+     * Splits "meta.user.key" into {"user", "key"}.
+     * @return null when field does not name user, exif or gpano metadata
+     */
+    private static String[] split(String field) {
+        if (!field.startsWith(FIELD_PREFIX)) return null;
+        int dot = field.indexOf('.', FIELD_PREFIX.length());
+        if (dot < 0 || dot == field.length() - 1) return null;
+        String kind = field.substring(FIELD_PREFIX.length(), dot);
+        if (!MediaStorage.META_USER.equals(kind) && !MediaStorage.META_EXIF.equals(kind)
+                && !MediaStorage.META_GPANO.equals(kind)) {
+            return null;
+        }
+        return new String[] {kind, field.substring(dot + 1)};
+    }
+
+    private static Map<String, String> fields(MediaRecord record, String kind) {
+        if (MediaStorage.META_EXIF.equals(kind)) return record.getExif();
+        if (MediaStorage.META_GPANO.equals(kind)) return record.getGpano();
+        return record.getUser();
+    }
+
+    void put(final MediaInfo mediaInfo) {
+        change(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = entries.get(mediaInfo.getId());
+                MediaRecord record = new MediaRecord(mediaInfo, null);
+                if (entry != null) {
+                    unindex(entry.record);
+                    record.setExif(entry.record.getExif());
+                    record.setGpano(entry.record.getGpano());
+                    record.setUser(entry.record.getUser());
+                    entries.put(record.getId(), new Entry(record, entry.sequence));
+                    index(record);
+                } else {
+                    insert(record);
+                }
+            }
+        });
+    }
+
+    void putUserMeta(final String mediaId, final String key, final String value) {
+        change(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = entries.get(mediaId);
+                if (entry == null) return;
+                String old = entry.record.getUser().put(key, value);
+                if (old != null) {
+                    unindex(field(MediaStorage.META_USER, key), old, mediaId);
+                }
+                index(field(MediaStorage.META_USER, key), value, mediaId);
+            }
+        });
+    }
+
+    /**
+     * Removes the user metadata key of mediaId, or all of its user metadata when key is null.
+     */
+    void removeUserMeta(final String mediaId, final String key) {
+        change(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = entries.get(mediaId);
+                if (entry == null) return;
+                Map<String, String> user = entry.record.getUser();
+                List<String> keys = key == null ? new ArrayList<>(user.keySet()) : Collections.singletonList(key);
+                for (String userKey : keys) {
+                    String old = user.remove(userKey);
+                    if (old != null) {
+                        unindex(field(MediaStorage.META_USER, userKey), old, mediaId);
+                    }
+                }
+            }
+        });
+    }
+
+    void remove(final String mediaId) {
+        change(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = entries.remove(mediaId);
+                if (entry != null) {
+                    unindex(entry.record);
+                }
+            }
+        });
+    }
+
+    private synchronized void change(Runnable change) {
+        change.run();
+        if (journal != null) {
+            journal.add(change);
+        }
+        changes++;
+    }
+
+    private void clear() {
+        entries = new HashMap<>();
+        postings = new HashMap<>();
+        nextSequence = 0;
+    }
+
+    private void insert(MediaRecord record) {
+        entries.put(record.getId(), new Entry(record, nextSequence++));
+        index(record);
+    }
+
+    private void index(MediaRecord record) {
+        for (String kind : new String[] {MediaStorage.META_USER, MediaStorage.META_EXIF, MediaStorage.META_GPANO}) {
+            for (Map.Entry<String, String> field : fields(record, kind).entrySet()) {
+                index(field(kind, field.getKey()), field.getValue(), record.getId());
+            }
+        }
+    }
+
+    private void unindex(MediaRecord record) {
+        for (String kind : new String[] {MediaStorage.META_USER, MediaStorage.META_EXIF, MediaStorage.META_GPANO}) {
+            for (Map.Entry<String, String> field : fields(record, kind).entrySet()) {
+                unindex(field(kind, field.getKey()), field.getValue(), record.getId());
+            }
+        }
+    }
+
+    private void index(String field, String value, String mediaId) {
+        Map<String, Set<String>> values = postings.get(field);
+        if (values == null) {
+            values = new HashMap<>();
+            postings.put(field, values);
+        }
+        Set<String> ids = values.get(value);
+        if (ids == null) {
+            ids = new LinkedHashSet<>();
+            values.put(value, ids);
+        }
+        ids.add(mediaId);
+    }
+
+    private void unindex(String field, String value, String mediaId) {
+        Map<String, Set<String>> values = postings.get(field);
+        Set<String> ids = values == null ? null : values.get(value);
+        if (ids == null) return;
+        ids.remove(mediaId);
+        if (ids.isEmpty()) {
+            values.remove(value);
+            if (values.isEmpty()) {
+                postings.remove(field);
+            }
+        }
+    }
+
+    private static String field(String kind, String key) {
+        return FIELD_PREFIX + kind + "." + key;
+    }
+
+    /**
+     * Writes the snapshot if the mirror changed since it was last written.
+     * The file is replaced atomically, so a crash leaves the previous snapshot intact, and a failed
+     * write leaves the mirror changed so that the next save writes it again.
+     */
+    public void save() throws IOException {
+        synchronized (saveLock) {
+            Snapshot snapshot = new Snapshot();
+            long written;
+            synchronized (this) {
+                if (changes == savedChanges) return;
+                List<Entry> ordered = new ArrayList<>(entries.values());
+                Collections.sort(ordered, ORDER);
+                for (Entry entry : ordered) {
+                    snapshot.getMedia().add(copy(entry.record));
+                }
+                snapshot.setSyncedAt(syncedAt);
+                written = changes;
+            }
+
+            File temp = new File(file.getPath() + TEMP_SUFFIX);
+            try {
+                FileOutputStream stream = new FileOutputStream(temp);
+                OutputStream out = new BufferedOutputStream(stream);
+                try {
+                    JSON.encode(snapshot, out);
+                    out.flush();
+                    stream.getFD().sync();
+                } catch (JSONException e) {
+                    throw new IOException("failed to encode " + file, e);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            }
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                temp.delete();
+                throw new IOException("failed to replace " + file);
+            }
+            synchronized (this) {
+                savedChanges = written;
+            }
+        }
+    }
+
+    private static MediaRecord copy(MediaRecord record) {
+        MediaRecord copy = new MediaRecord();
+        copy.setId(record.getId());
+        copy.setContentType(record.getContentType());
+        copy.setBytes(record.getBytes());
+        copy.setCreatedAt(record.getCreatedAt());
+        copy.setExif(new CompactMetaMap(record.getExif()));
+        copy.setGpano(new CompactMetaMap(record.getGpano()));
+        copy.setUser(new CompactMetaMap(record.getUser()));
+        return copy;
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) return;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        Snapshot snapshot;
+        try {
+            snapshot = JSON.decode(in, Snapshot.class);
+        } catch (JSONException e) {
+            throw new IOException("failed to decode " + file, e);
+        } finally {
+            in.close();
+        }
+        synchronized (this) {
+            for (MediaRecord record : snapshot.getMedia()) {
+                insert(record);
+            }
+            syncedAt = snapshot.getSyncedAt();
+        }
+    }
+
+    /**
+     * Writes the snapshot, see save.
+     */
+    @Override
+    public void close() throws IOException {
+        save();
+    }
+}
@@ -8,31 +8,59 @@ package com.ricohapi.mstorage;
 import com.ricohapi.auth.AuthClient;
 import com.ricohapi.auth.CompletionHandler;
 import com.ricohapi.auth.RicohAPIException;
-import com.ricohapi.auth.Scope;
 import com.ricohapi.auth.entity.AuthResult;
+import com.ricohapi.mstorage.entity.ItemResult;
 import com.ricohapi.mstorage.entity.MediaContent;
+import com.ricohapi.mstorage.entity.MediaIndex;
 import com.ricohapi.mstorage.entity.MediaInfo;
 import com.ricohapi.mstorage.entity.MediaList;
 import com.ricohapi.mstorage.entity.MediaMeta;
+import com.ricohapi.mstorage.entity.Paging;
 import com.ricohapi.mstorage.response.RespList;
 import com.ricohapi.mstorage.response.RespMeta;
 
 import net.arnx.jsonic.JSON;
 import net.arnx.jsonic.TypeReference;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MediaStorage {
-    private AuthClient authClient;
-    private String accessToken;
+    private AuthorizedTransport transport;
+    private volatile MediaCache cache;
+    private volatile MediaMirror mirror;
+    private volatile ContentCache contentCache;
+    private volatile MediaMetrics metrics = MediaMetrics.NONE;
+    private final TokenManager tokenManager;
+    private final RequestScheduler.Lane lane;
 
-    private static final String ENDPOINT = "https://mss.ricohapi.com/v1/media";
-    private static final String SEARCH_PATH = "/search";
+    static final String ENDPOINT = "https://mss.ricohapi.com/v1/media";
+    static final String SEARCH_PATH = "/search";
     private static final String GET_CONTENT_PATH = "/content";
     private static final String GET_META_PATH = "/meta";
     private static final String USER_META_PATH = "/meta/user";
@@ -40,224 +68,765 @@ public class MediaStorage {
     private static final Integer FIRST = 1;
     private static final Integer MAX_USER_META_LENGTH = 1024;
     private static final Integer MIN_USER_META_LENGTH = 1;
+    private static final int DOWNLOAD_ATTEMPTS = 3;
+    private static final long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+    private static final long UNBOUNDED = -1;
+    private static final String PART_SUFFIX = ".part";
+    private static final String PART_STATE_SUFFIX = ".part.state";
+    private static final String CHARSET = "UTF-8";
+
+    public static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_SEGMENT_PARALLELISM = 4;
 
     public static final String LIST_PARAM_KEY_FILTER = "filter";
     public static final String META_EXIF = "exif";
     public static final String META_GPANO = "gpano";
     public static final String META_USER = "user";
 
+    /**
+     * Creates a MediaStorage whose idempotent requests are retried by a RetryingTransport with the default policy.
+     */
     public MediaStorage(AuthClient authClient) {
-        this.authClient = authClient;
+        this(authClient, new RetryingTransport(new URLConnectionTransport()));
     }
 
-    public void connect(final CompletionHandler<AuthResult> handler) {
-        authClient.session(Scope.MSTORAGE, new CompletionHandler<AuthResult>() {
-            @Override
-            public void onCompleted(AuthResult result) {
-                MediaStorage.this.accessToken = result.getAccessToken();
-                handler.onCompleted(result);
-            }
+    public MediaStorage(AuthClient authClient, ConnectionPool connectionPool) {
+        this(authClient, new RetryingTransport(new URLConnectionTransport(connectionPool)));
+    }
 
-            @Override
-            public void onThrowable(Throwable t) {
-                handler.onThrowable(t);
-            }
-        });
+    public MediaStorage(AuthClient authClient, HttpTransport transport) {
+        this(new TokenManager(authClient), transport);
+    }
+
+    /**
+     * Creates a MediaStorage that takes its access token from tokenManager.
+     * Every request carries the current token and is sent once more with a renewed token after a 401.
+     */
+    public MediaStorage(TokenManager tokenManager, HttpTransport transport) {
+        this.tokenManager = tokenManager;
+        this.transport = new AuthorizedTransport(transport, tokenManager);
+        this.lane = null;
+    }
+
+    private MediaStorage(MediaStorage mediaStorage, RequestScheduler.Lane lane) {
+        this.tokenManager = mediaStorage.tokenManager;
+        this.transport = mediaStorage.transport;
+        this.cache = mediaStorage.cache;
+        this.mirror = mediaStorage.mirror;
+        this.contentCache = mediaStorage.contentCache;
+        this.metrics = mediaStorage.metrics;
+        this.lane = lane;
+    }
+
+    /**
+     * Returns a MediaStorage whose requests are sent in lane when its transport includes a ScheduledTransport.
+     * It shares the connection and access token of this instance and starts with its caches, mirror and metrics.
+     */
+    public MediaStorage withLane(RequestScheduler.Lane lane) {
+        return new MediaStorage(this, lane);
+    }
+
+    /**
+     * @return the lane declared with withLane, or null
+     */
+    public RequestScheduler.Lane getLane() {
+        return lane;
+    }
+
+    public HttpTransport getTransport() {
+        return transport.getTransport();
+    }
+
+    public TokenManager getTokenManager() {
+        return tokenManager;
+    }
+
+    /**
+     * @return the transport that adds the access token to every request
+     */
+    HttpTransport getAuthorizedTransport() {
+        return transport;
+    }
+
+    /**
+     * Caches the results of info and meta(mediaId). Pass null to disable caching.
+     * Entries are invalidated by delete, addMeta and removeMeta on this instance.
+     */
+    public void setCache(MediaCache cache) {
+        this.cache = cache;
+    }
+
+    public MediaCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Serves download from contentCache and stores the contents it fetches there. Pass null to disable it.
+     * Entries are invalidated by delete on this instance.
+     */
+    public void setContentCache(ContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Keeps mirror current with the upload, addMeta, removeMeta and delete calls of this instance
+     * and answers list searches from it while it is fresh. Pass null to detach it.
+     */
+    public void setMirror(MediaMirror mirror) {
+        this.mirror = mirror;
+    }
+
+    public MediaMirror getMirror() {
+        return mirror;
+    }
+
+    /**
+     * Reports the timings and counters of every operation to metrics. Pass null to stop reporting.
+     */
+    public void setMetrics(MediaMetrics metrics) {
+        this.metrics = metrics == null ? MediaMetrics.NONE : metrics;
+    }
+
+    public MediaMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets an access token and keeps it renewed in the background, see TokenManager.
+     */
+    public void connect(CompletionHandler<AuthResult> handler) {
+        tokenManager.connect(handler);
     }
 
     public void upload(InputStream inputStream, CompletionHandler<MediaInfo> handler) {
+        upload(inputStream, RicohAPIRequest.UNKNOWN_LENGTH, handler);
+    }
+
+    public void upload(File file, CompletionHandler<MediaInfo> handler) {
+        InputStream inputStream;
+        try {
+            inputStream = new FileInputStream(file);
+        } catch (IOException e) {
+            handler.onThrowable(e);
+            return;
+        }
+        try {
+            upload(inputStream, file.length(), handler);
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Uploads the remaining bytes of the channel, from its current position to its end.
+     * The channel is left open.
+     */
+    public void upload(FileChannel channel, CompletionHandler<MediaInfo> handler) {
+        long contentLength;
+        try {
+            contentLength = channel.size() - channel.position();
+        } catch (IOException e) {
+            handler.onThrowable(e);
+            return;
+        }
+        upload(Channels.newInputStream(channel), contentLength, handler);
+    }
+
+    /**
+     * Uploads contentLength bytes read from inputStream.
+     * Pass RicohAPIRequest.UNKNOWN_LENGTH to send the body in chunked mode.
+     */
+    public void upload(InputStream inputStream, long contentLength, CompletionHandler<MediaInfo> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.UPLOAD, handler);
+        TransportResponse response = null;
         try {
-            if (accessToken == null) {
+            if (tokenManager.getAccessToken() == null) {
                 throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
             }
-            RicohAPIRequest request = new RicohAPIRequest(ENDPOINT);
             Map<String, String> header = new HashMap<>();
-            header.put("Authorization", "Bearer " + accessToken);
             header.put("Content-Type", "image/jpeg");
-            request.upload(header, inputStream);
+            response = transport.upload(ENDPOINT, header, inputStream, contentLength);
 
-            if (request.isSucceeded()) {
-                MediaInfo mediaInfo = JSON.decode(request.getResponseBody(), MediaInfo.class);
+            if (response.isSucceeded()) {
+                MediaInfo mediaInfo = decode(response, MediaInfo.class);
+                MediaMirror mirror = this.mirror;
+                if (mirror != null) {
+                    mirror.put(mediaInfo);
+                }
                 handler.onCompleted(mediaInfo);
             } else {
-                throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
             }
         } catch (IOException e) {
             handler.onThrowable(e);
         } catch (RicohAPIException e) {
             handler.onThrowable(e);
+        } finally {
+            closeQuietly(response);
+            OperationTrace.end(handler);
         }
     }
 
     public void download(String mediaId, CompletionHandler<MediaContent> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.DOWNLOAD, handler);
+        TransportResponse response = null;
         try {
-            if (accessToken == null) {
+            if (tokenManager.getAccessToken() == null) {
                 throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
             }
 
+            ContentCache contentCache = this.contentCache;
+            long generation = 0;
+            if (contentCache != null) {
+                MediaContent cached = contentCache.get(mediaId);
+                if (cached != null) {
+                    handler.onCompleted(cached);
+                    return;
+                }
+                generation = contentCache.generation(mediaId);
+            }
+
             Map<String, String> header = new HashMap<>();
-            header.put("Authorization", "Bearer " + accessToken);
 
-            RicohAPIRequest request = new RicohAPIRequest(ENDPOINT + "/" + mediaId + GET_CONTENT_PATH);
-            InputStream inputStream = request.download(header);
+            response = transport.download(ENDPOINT + "/" + mediaId + GET_CONTENT_PATH, header);
 
-            if (request.isSucceeded()) {
+            if (response.isSucceeded() && contentCache != null && contentLength(response) <= contentCache.getMaxBytes()) {
+                InputStream inputStream = response.getInputStream();
+                try {
+                    handler.onCompleted(contentCache.put(mediaId, inputStream, generation));
+                } finally {
+                    inputStream.close();
+                }
+            } else if (response.isSucceeded()) {
+                // the response is closed when the caller closes the content stream
+                InputStream inputStream = response.getInputStream();
+                response = null;
                 handler.onCompleted(new MediaContent(inputStream));
             } else {
-                throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
             }
 
         } catch (RicohAPIException e) {
             handler.onThrowable(e);
         } catch (IOException e) {
-            e.printStackTrace();
+            handler.onThrowable(e);
+        } finally {
+            closeQuietly(response);
+            OperationTrace.end(handler);
         }
-
     }
 
-    public void list(Map<String, ?> params, CompletionHandler<MediaList> handler) {
+    /**
+     * Downloads the content into target and completes with target once its length matches MediaInfo.getBytes().
+     * The content is written to target.part, next to a target.part.state file that records the media id
+     * and the ETag or Last-Modified of the response; target is replaced only when the content is complete.
+     * A later call for the same media requests only the remaining bytes, with an HTTP Range header and
+     * an If-Range header so that a changed content is sent whole. A transfer interrupted by an IOException
+     * or a body that ends early is resumed the same way.
+     */
+    public void downloadTo(String mediaId, File target, CompletionHandler<File> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.DOWNLOAD, handler);
         try {
-            if (accessToken == null) {
-                throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
-            }
-            RicohAPIRequest request;
-            Map<String, String> header = new HashMap<>();
-            header.put("Authorization", "Bearer " + accessToken);
-            if (params == null || params.isEmpty()) {
-                // GET /media
-                request = new RicohAPIRequest(ENDPOINT);
-                request.get(header);
-            } else {
-                if (!params.containsKey(LIST_PARAM_KEY_FILTER) || params.get(LIST_PARAM_KEY_FILTER) == null) {
-                    // GET /media
-                    request = new RicohAPIRequest(ENDPOINT, params);
-                    request.get(header);
-                } else {
-                    // POST /media/search
-                    Map<String, Object> searchParams = new HashMap<>();
-                    searchParams.put("search_version", "2016-07-08");
-                    Map<String, Object> paging = new HashMap<>();
-                    for (String key : params.keySet()) {
-                        if (LIST_PARAM_KEY_FILTER.equals(key)) {
-                            searchParams.put("query", params.get(LIST_PARAM_KEY_FILTER));
-                        } else {
-                            paging.put(key, params.get(key));
+            long expected = fetchInfo(mediaId).getBytes();
+            File part = new File(target.getPath() + PART_SUFFIX);
+            File state = new File(target.getPath() + PART_STATE_SUFFIX);
+            IOException lastError = null;
+            long length = 0;
+            for (int attempt = 0; attempt < DOWNLOAD_ATTEMPTS; attempt++) {
+                try {
+                    length = downloadRemaining(mediaId, part, state, expected);
+                    if (length == expected) {
+                        if (!part.renameTo(target) && !(target.delete() && part.renameTo(target))) {
+                            throw new IOException("failed to replace " + target);
                         }
+                        state.delete();
+                        handler.onCompleted(target);
+                        return;
                     }
-                    searchParams.put("paging", paging);
+                    if (length > expected) {
+                        // not the content described by the information, start over
+                        part.delete();
+                        state.delete();
+                    }
+                    lastError = null;
+                } catch (IOException e) {
+                    lastError = e;
+                }
+                OperationTrace<?> trace = OperationTrace.current();
+                if (trace != null && attempt + 1 < DOWNLOAD_ATTEMPTS) {
+                    trace.retried();
+                }
+            }
+            if (lastError != null) {
+                throw lastError;
+            }
+            checkLength(expected, length);
+        } catch (IOException e) {
+            handler.onThrowable(e);
+        } catch (RicohAPIException e) {
+            handler.onThrowable(e);
+        } finally {
+            OperationTrace.end(handler);
+        }
+    }
+
+    /**
+     * Appends the remaining content of mediaId to part, keeping the bytes already in part only when
+     * state records the same media and a validator for them.
+     * @return the length of part
+     */
+    private long downloadRemaining(String mediaId, File part, File state, long expected)
+            throws IOException, RicohAPIException {
+        String validator = readPartState(state, mediaId);
+        RandomAccessFile file = new RandomAccessFile(part, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            long position = channel.size();
+            if (validator == null || position > expected) {
+                channel.truncate(0);
+                position = 0;
+            }
+            if (position == expected && position > 0) {
+                return position;
+            }
+
+            TransportResponse response = requestContent(mediaId, position, UNBOUNDED, position > 0 ? validator : null);
+            if (response.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                // the server sent the whole content
+                channel.truncate(0);
+                position = 0;
+            }
+            String etag = response.getHeaderField("ETag");
+            writePartState(state, mediaId, etag != null ? etag : response.getHeaderField("Last-Modified"));
+            return position + transfer(response, channel, position);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the validator recorded in state for mediaId, or null when state is missing, names another
+     * media or has no validator
+     */
+    private static String readPartState(File state, String mediaId) throws IOException {
+        if (!state.isFile()) return null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(state), CHARSET));
+        try {
+            String id = reader.readLine();
+            String validator = reader.readLine();
+            return mediaId.equals(id) && validator != null && !validator.isEmpty() ? validator : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void writePartState(File state, String mediaId, String validator) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(state), CHARSET);
+        try {
+            writer.write(mediaId + "\n" + (validator == null ? "" : validator) + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Downloads the content into target by fetching segmentSize byte ranges on up to parallelism
+     * connections at once and writing each one at its offset in a preallocated file.
+     * Falls back to a single stream when the server does not honor the Range header.
+     */
+    public void downloadSegmented(String mediaId, File target, CompletionHandler<File> handler) {
+        downloadSegmented(mediaId, target, DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENT_PARALLELISM, handler);
+    }
+
+    public void downloadSegmented(final String mediaId, File target, final long segmentSize, int parallelism,
+                                  CompletionHandler<File> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.DOWNLOAD, handler);
+        try {
+            if (segmentSize < 1) {
+                throw new RicohAPIException(0, "invalid segmentSize: " + segmentSize);
+            }
+            final long expected = fetchInfo(mediaId).getBytes();
+            RandomAccessFile file = new RandomAccessFile(target, "rw");
+            try {
+                file.setLength(expected);
+                final FileChannel channel = file.getChannel();
+                if (expected == 0) {
+                    handler.onCompleted(target);
+                    return;
+                }
+
+                long firstEnd = Math.min(segmentSize, expected) - 1;
+                TransportResponse first = requestContent(mediaId, 0, firstEnd, null);
+                if (first.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    // Range is not supported: the whole content comes in this response
+                    long written = transfer(first, channel, 0);
+                    checkLength(expected, written);
+                    handler.onCompleted(target);
+                    return;
+                }
+                checkLength(firstEnd + 1, transfer(first, channel, 0));
 
-                    request = new RicohAPIRequest(ENDPOINT + SEARCH_PATH);
-                    request.post(header, searchParams, RicohAPIRequest.ParamType.JSON);
+                List<Long> offsets = new ArrayList<>();
+                for (long offset = firstEnd + 1; offset < expected; offset += segmentSize) {
+                    offsets.add(offset);
+                }
+                final OperationTrace<?> trace = OperationTrace.current();
+                List<ItemResult<Long, Long>> results = BatchExecutor.execute(offsets.iterator(), parallelism, offsets.size(),
+                        new BatchExecutor.Task<Long, Long>() {
+                            @Override
+                            public void run(Long offset, CompletionHandler<Long> segmentHandler) {
+                                long end = Math.min(offset + segmentSize, expected) - 1;
+                                OperationTrace<?> previous = OperationTrace.bind(trace);
+                                try {
+                                    TransportResponse response = requestContent(mediaId, offset, end, null);
+                                    if (response.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                                        response.close();
+                                        throw new RicohAPIException(response.getResponseCode(), "range not honored: " + offset + "-" + end);
+                                    }
+                                    long written = transfer(response, channel, offset);
+                                    checkLength(end - offset + 1, written);
+                                    segmentHandler.onCompleted(written);
+                                } catch (IOException e) {
+                                    segmentHandler.onThrowable(e);
+                                } catch (RicohAPIException e) {
+                                    segmentHandler.onThrowable(e);
+                                } finally {
+                                    OperationTrace.unbind(previous);
+                                }
+                            }
+                        }, null);
+                for (ItemResult<Long, Long> result : results) {
+                    if (!result.isSucceeded()) {
+                        handler.onThrowable(result.getThrowable());
+                        return;
+                    }
                 }
+                handler.onCompleted(target);
+            } finally {
+                file.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handler.onThrowable(e);
+        } catch (IOException e) {
+            handler.onThrowable(e);
+        } catch (RicohAPIException e) {
+            handler.onThrowable(e);
+        } finally {
+            OperationTrace.end(handler);
+        }
+    }
+
+    /**
+     * @return the Content-Length of response, or 0 when it is absent or invalid
+     */
+    private static long contentLength(TransportResponse response) {
+        try {
+            String value = response.getHeaderField("Content-Length");
+            return value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param ifRange the ETag or Last-Modified the range must match, or null
+     */
+    private TransportResponse requestContent(String mediaId, long start, long end, String ifRange)
+            throws IOException, RicohAPIException {
+        Map<String, String> header = new HashMap<>();
+        if (start > 0 || end != UNBOUNDED) {
+            header.put("Range", "bytes=" + start + "-" + (end == UNBOUNDED ? "" : String.valueOf(end)));
+        }
+        if (ifRange != null) {
+            header.put("If-Range", ifRange);
+        }
+        TransportResponse response = transport.download(ENDPOINT + "/" + mediaId + GET_CONTENT_PATH, header);
+        if (!response.isSucceeded()) {
+            try {
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
+            } finally {
+                response.close();
             }
+        }
+        return response;
+    }
+
+    private static long transfer(TransportResponse response, FileChannel channel, long position) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(response.getInputStream());
+        try {
+            long total = 0;
+            long transferred;
+            while ((transferred = channel.transferFrom(source, position + total, TRANSFER_CHUNK_SIZE)) > 0) {
+                total += transferred;
+            }
+            return total;
+        } finally {
+            source.close();
+        }
+    }
 
-            if (request.isSucceeded()) {
-                RespList list = JSON.decode(request.getResponseBody(), RespList.class);
+    private static void checkLength(long expected, long actual) throws RicohAPIException {
+        if (expected != actual) {
+            throw new RicohAPIException(0, "length mismatch: expected " + expected + " bytes but got " + actual);
+        }
+    }
+
+    public void list(Map<String, ?> params, CompletionHandler<MediaList> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.LIST, handler);
+        TransportResponse response = null;
+        try {
+            MediaList mirrored = searchMirror(params);
+            if (mirrored != null) {
+                handler.onCompleted(mirrored);
+                return;
+            }
+            response = requestList(params);
+
+            if (response.isSucceeded()) {
+                RespList list = decode(response, RespList.class);
                 handler.onCompleted(new MediaList(list.getMedia(), list.getPaging()));
             } else {
-                throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
             }
         } catch (IOException e) {
             handler.onThrowable(e);
         } catch (RicohAPIException e) {
             handler.onThrowable(e);
+        } finally {
+            closeQuietly(response);
+            OperationTrace.end(handler);
         }
     }
 
-    public void delete(String mediaId, CompletionHandler<Object> handler) {
+    /**
+     * Like list, but passes each media to listener while the response is still being read,
+     * then completes handler with the paging of the page.
+     */
+    public void list(Map<String, ?> params, MediaIndexListener listener, CompletionHandler<Paging> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.LIST, handler);
+        TransportResponse response = null;
         try {
-            if (accessToken == null) {
-                throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
+            MediaList mirrored = searchMirror(params);
+            if (mirrored != null) {
+                for (MediaIndex mediaIndex : mirrored.getMediaList()) {
+                    listener.onMediaIndex(mediaIndex);
+                }
+                handler.onCompleted(mirrored.getPaging());
+                return;
             }
-            RicohAPIRequest request = new RicohAPIRequest(ENDPOINT + "/" + mediaId);
-            Map<String, String> header = new HashMap<>();
-            header.put("Authorization", "Bearer " + accessToken);
+            response = requestList(params);
 
-            request.delete(header);
-
-            if (request.isSucceeded()) {
-                handler.onCompleted(new Object());
+            if (response.isSucceeded()) {
+                InputStream inputStream = response.getInputStream();
+                Paging paging;
+                try {
+                    paging = MediaListReader.read(inputStream, listener);
+                } finally {
+                    inputStream.close();
+                }
+                handler.onCompleted(paging);
             } else {
-                throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
             }
         } catch (IOException e) {
             handler.onThrowable(e);
         } catch (RicohAPIException e) {
             handler.onThrowable(e);
+        } finally {
+            closeQuietly(response);
+            OperationTrace.end(handler);
+        }
+    }
+
+    /**
+     * @return the page answered by a fresh mirror for a search, or null when the server has to be asked
+     */
+    private MediaList searchMirror(Map<String, ?> params) {
+        MediaMirror mirror = this.mirror;
+        if (mirror == null || params == null || params.get(LIST_PARAM_KEY_FILTER) == null || !mirror.isFresh()) {
+            return null;
         }
+        return mirror.search(params);
+    }
+
+    private TransportResponse requestList(Map<String, ?> params) throws IOException, RicohAPIException {
+        if (tokenManager.getAccessToken() == null) {
+            throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
+        }
+        Map<String, String> header = new HashMap<>();
+        if (params == null || params.isEmpty()) {
+            // GET /media
+            return transport.get(ENDPOINT, null, header);
+        } else if (!params.containsKey(LIST_PARAM_KEY_FILTER) || params.get(LIST_PARAM_KEY_FILTER) == null) {
+            // GET /media
+            return transport.get(ENDPOINT, params, header);
+        } else {
+            // POST /media/search
+            Map<String, Object> searchParams = new HashMap<>();
+            searchParams.put("search_version", "2016-07-08");
+            Map<String, Object> paging = new HashMap<>();
+            for (String key : params.keySet()) {
+                if (LIST_PARAM_KEY_FILTER.equals(key)) {
+                    searchParams.put("query", params.get(LIST_PARAM_KEY_FILTER));
+                } else {
+                    paging.put(key, params.get(key));
+                }
+            }
+            searchParams.put("paging", paging);
+
+            return transport.post(ENDPOINT + SEARCH_PATH, header, searchParams, RicohAPIRequest.ParamType.JSON);
+        }
+    }
 
+    /**
+     * Returns an iterator over every media matching params, following the paging of list.
+     * Pages are fetched on a new daemon thread each.
+     */
+    public MediaIterator iterate(Map<String, ?> params) {
+        return iterate(params, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Thread thread = new Thread(command, "MediaIterator");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        });
     }
 
+    /**
+     * Returns an iterator over every media matching params, fetching pages on executor.
+     */
+    public MediaIterator iterate(Map<String, ?> params, Executor executor) {
+        return new MediaIterator(this, params, executor);
+    }
 
-    public void info(String mediaId, CompletionHandler<MediaInfo> handler) {
+    public void delete(String mediaId, CompletionHandler<Object> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.DELETE, handler);
+        TransportResponse response = null;
         try {
-            if (accessToken == null) {
+            if (tokenManager.getAccessToken() == null) {
                 throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
             }
-            RicohAPIRequest request = new RicohAPIRequest(ENDPOINT + "/" + mediaId);
             Map<String, String> header = new HashMap<>();
-            header.put("Authorization", "Bearer " + accessToken);
 
-            request.get(header);
+            response = transport.delete(ENDPOINT + "/" + mediaId, header);
+            invalidate(mediaId, null);
 
-            if (request.isSucceeded()) {
-                MediaInfo mediaInfo = JSON.decode(request.getResponseBody(), MediaInfo.class);
-                handler.onCompleted(mediaInfo);
+            if (response.isSucceeded()) {
+                MediaMirror mirror = this.mirror;
+                if (mirror != null) {
+                    mirror.remove(mediaId);
+                }
+                handler.onCompleted(new Object());
             } else {
-                throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
             }
         } catch (IOException e) {
             handler.onThrowable(e);
         } catch (RicohAPIException e) {
             handler.onThrowable(e);
+        } finally {
+            closeQuietly(response);
+            OperationTrace.end(handler);
         }
     }
 
-    public void meta(String mediaId, CompletionHandler<MediaMeta> handler) {
+
+    public void info(String mediaId, CompletionHandler<MediaInfo> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.INFO, handler);
         try {
-            if (accessToken == null) {
-                throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
-            }
-            RicohAPIRequest request = new RicohAPIRequest(ENDPOINT + "/" + mediaId + GET_META_PATH);
+            handler.onCompleted(fetchInfo(mediaId));
+        } catch (IOException e) {
+            handler.onThrowable(e);
+        } catch (RicohAPIException e) {
+            handler.onThrowable(e);
+        } finally {
+            OperationTrace.end(handler);
+        }
+    }
 
-            Map<String, String> header = new HashMap<>();
-            header.put("Authorization", "Bearer " + accessToken);
+    private MediaInfo fetchInfo(String mediaId) throws IOException, RicohAPIException {
+        if (tokenManager.getAccessToken() == null) {
+            throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
+        }
+        return cachedGet(mediaId, MediaCache.INFO, ENDPOINT + "/" + mediaId, MediaInfo.class);
+    }
 
-            request.get(header);
+    private <T> T cachedGet(String mediaId, String kind, String url, Class<T> type) throws IOException, RicohAPIException {
+        MediaCache cache = this.cache;
+        long now = System.nanoTime();
+        MediaCache.Entry cached = cache == null ? null : cache.lookup(mediaId, kind, now);
+        if (cached != null && cached.isFresh(now)) {
+            return type.cast(cached.getValue());
+        }
+        long generation = cache == null ? 0 : cache.generation(mediaId, kind);
+
+        Map<String, String> header = new HashMap<>();
+        if (cached != null && cached.getEtag() != null) {
+            header.put("If-None-Match", cached.getEtag());
+        }
 
-            if (request.isSucceeded()) {
-                RespMeta respMeta = JSON.decode(request.getResponseBody(), RespMeta.class);
-                handler.onCompleted(new MediaMeta(respMeta));
+        TransportResponse response = transport.get(url, null, header);
+        try {
+            if (cached != null && response.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                cache.revalidated(cached);
+                return type.cast(cached.getValue());
+            }
+            if (response.isSucceeded()) {
+                T value = decode(response, type);
+                if (cache != null) {
+                    cache.put(mediaId, kind, value, response.getHeaderField("ETag"), generation);
+                }
+                return value;
             } else {
-                throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    public void meta(String mediaId, CompletionHandler<MediaMeta> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.META, handler);
+        try {
+            if (tokenManager.getAccessToken() == null) {
+                throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
             }
+            RespMeta respMeta = cachedGet(mediaId, MediaCache.META, ENDPOINT + "/" + mediaId + GET_META_PATH, RespMeta.class);
+            handler.onCompleted(new MediaMeta(respMeta));
         } catch (IOException e) {
             handler.onThrowable(e);
         } catch (RicohAPIException e) {
             handler.onThrowable(e);
+        } finally {
+            OperationTrace.end(handler);
         }
-
     }
 
     public void meta(String mediaId, String fieldName, CompletionHandler<Map<String, String>> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.META, handler);
+        TransportResponse response = null;
         try {
-            if (accessToken == null) {
+            if (tokenManager.getAccessToken() == null) {
                 throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
             }
             Map<String, String> header = new HashMap<>();
-            header.put("Authorization", "Bearer " + accessToken);
             if (fieldName == null) {
                 throw new RicohAPIException(0, "invalid fieldName: null");
             } else if (META_EXIF.equals(fieldName) || META_GPANO.equals(fieldName) || META_USER.equals(fieldName)) {
                 // GET /media/{id}/meta/exif, /media/{id}/meta/gpano, /media/{id}/meta/user
-                RicohAPIRequest request = new RicohAPIRequest(ENDPOINT + "/" + mediaId + GET_META_PATH + "/" + fieldName);
-                request.get(header);
+                response = transport.get(ENDPOINT + "/" + mediaId + GET_META_PATH + "/" + fieldName, null, header);
 
-                if (request.isSucceeded()) {
-                    Map<String, String> respMap = JSON.decode(request.getResponseBody(), new TypeReference<Map<String, String>>() {});
+                if (response.isSucceeded()) {
+                    Map<String, String> respMap = decode(response, new TypeReference<Map<String, String>>() {});
                     handler.onCompleted(respMap);
                 } else {
-                    throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+                    throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
                 }
             } else {
                 String userMetaKey = replaceUserMeta(fieldName);
@@ -265,31 +834,98 @@ public class MediaStorage {
                     throw new RicohAPIException(0, "invalid fieldName: " + fieldName);
                 }
                 // GET /media/{id}/meta/user/{key}
-                RicohAPIRequest request = new RicohAPIRequest(ENDPOINT + "/" + mediaId + USER_META_PATH + "/" + userMetaKey);
-                request.get(header);
+                response = transport.get(ENDPOINT + "/" + mediaId + USER_META_PATH + "/" + userMetaKey, null, header);
 
-                if (request.isSucceeded()) {
+                if (response.isSucceeded()) {
                     Map<String, String> respMap = new HashMap<>();
-                    respMap.put(userMetaKey, request.getResponseBody());
+                    respMap.put(userMetaKey, response.getResponseBody());
                     handler.onCompleted(respMap);
                 } else {
-                    throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+                    throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
                 }
             }
         } catch (IOException e) {
             handler.onThrowable(e);
         } catch (RicohAPIException e) {
             handler.onThrowable(e);
+        } finally {
+            closeQuietly(response);
+            OperationTrace.end(handler);
         }
     }
 
+    /**
+     * Fetches the metadata of every media in mediaIds with up to parallelism concurrent meta(mediaId) calls.
+     * Repeated ids are fetched once. listener, if not null, gets each result as soon as it arrives;
+     * handler completes once with one result per id, in the order of mediaIds. A failed id does not stop the others.
+     */
+    public void meta(Collection<String> mediaIds, int parallelism, ItemResultListener<String, MediaMeta> listener,
+                     CompletionHandler<Map<String, ItemResult<String, MediaMeta>>> handler) {
+        metaAll(mediaIds, parallelism, new BatchExecutor.Task<String, MediaMeta>() {
+            @Override
+            public void run(String mediaId, CompletionHandler<MediaMeta> itemHandler) {
+                meta(mediaId, itemHandler);
+            }
+        }, listener, handler);
+    }
+
+    /**
+     * Like meta(mediaIds, parallelism, listener, handler), for the section fieldName of each media
+     * as meta(mediaId, fieldName, handler) returns it. fieldName is validated before anything is sent.
+     */
+    public void meta(Collection<String> mediaIds, final String fieldName, int parallelism,
+                     ItemResultListener<String, Map<String, String>> listener,
+                     CompletionHandler<Map<String, ItemResult<String, Map<String, String>>>> handler) {
+        if (fieldName == null || !(META_EXIF.equals(fieldName) || META_GPANO.equals(fieldName)
+                || META_USER.equals(fieldName) || replaceUserMeta(fieldName) != null)) {
+            handler.onThrowable(new RicohAPIException(0, "invalid fieldName: " + fieldName));
+            return;
+        }
+        metaAll(mediaIds, parallelism, new BatchExecutor.Task<String, Map<String, String>>() {
+            @Override
+            public void run(String mediaId, CompletionHandler<Map<String, String>> itemHandler) {
+                meta(mediaId, fieldName, itemHandler);
+            }
+        }, listener, handler);
+    }
+
+    private <V> void metaAll(Collection<String> mediaIds, int parallelism, BatchExecutor.Task<String, V> task,
+                             final ItemResultListener<String, V> listener,
+                             CompletionHandler<Map<String, ItemResult<String, V>>> handler) {
+        if (tokenManager.getAccessToken() == null) {
+            handler.onThrowable(new RicohAPIException(0, "wrong usage: use the connect method to get an access token."));
+            return;
+        }
+        Set<String> ids = new LinkedHashSet<>(mediaIds);
+        Map<String, ItemResult<String, V>> resultMap = new LinkedHashMap<>();
+        for (String mediaId : ids) {
+            resultMap.put(mediaId, null);
+        }
+        try {
+            List<ItemResult<String, V>> results = BatchExecutor.execute(ids.iterator(), parallelism, ids.size(), task,
+                    listener == null ? null : new BatchExecutor.Listener<String, V>() {
+                        @Override
+                        public void onResult(ItemResult<String, V> result) {
+                            listener.onResult(result);
+                        }
+                    });
+            for (ItemResult<String, V> result : results) {
+                resultMap.put(result.getItem(), result);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handler.onThrowable(e);
+            return;
+        }
+        handler.onCompleted(resultMap);
+    }
+
     public void addMeta(String mediaId, Map<String, String> userMeta, CompletionHandler<Object> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.ADD_META, handler, userMeta.size());
         try {
-            if (accessToken == null) {
+            if (tokenManager.getAccessToken() == null) {
                 throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
             }
-            RicohAPIRequest request;
-
             for(String userMetaKey : userMeta.keySet()) {
                 String requestUserMetaKey = replaceUserMeta(userMetaKey);
                 String value = userMeta.get(userMetaKey);
@@ -297,70 +933,193 @@ public class MediaStorage {
                 if (requestUserMetaKey == null || !isValidValue(value)) {
                     throw new RicohAPIException(0, "invalid parameter: " + "{" + userMetaKey + "=" + value + "}");
                 }
-                request = new RicohAPIRequest(ENDPOINT + "/" + mediaId + USER_META_PATH + "/" + requestUserMetaKey);
-                Map<String, String> header = new HashMap<>();
-                header.put("Authorization", "Bearer " + accessToken);
-                header.put("Content-Type", "text/plain");
-
-                request.put(header, value);
+                putUserMeta(mediaId, requestUserMetaKey, value);
+                handler.onCompleted(new Object());
+            }
+        } catch (IOException e) {
+            handler.onThrowable(e);
+        } catch (RicohAPIException e) {
+            handler.onThrowable(e);
+        } finally {
+            OperationTrace.end(handler);
+        }
+    }
 
-                if (request.isSucceeded()) {
-                    handler.onCompleted(new Object());
-                } else {
-                    throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+    /**
+     * Writes every key of userMeta with up to parallelism concurrent PUT requests and completes once
+     * with one result per key. All keys and values are validated before anything is sent.
+     * A failed key does not stop the others.
+     */
+    public void addMeta(final String mediaId, final Map<String, String> userMeta, int parallelism,
+                        CompletionHandler<Map<String, ItemResult<String, Object>>> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.ADD_META, handler);
+        try {
+            if (tokenManager.getAccessToken() == null) {
+                throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
+            }
+            List<String> invalid = new ArrayList<>();
+            for (String userMetaKey : userMeta.keySet()) {
+                String value = userMeta.get(userMetaKey);
+                if (replaceUserMeta(userMetaKey) == null || value == null || !isValidValue(value)) {
+                    invalid.add("{" + userMetaKey + "=" + value + "}");
                 }
             }
-        } catch (IOException e) {
+            if (!invalid.isEmpty()) {
+                throw new RicohAPIException(0, "invalid parameter: " + invalid);
+            }
+
+            final OperationTrace<?> trace = OperationTrace.current();
+            List<ItemResult<String, Object>> results = BatchExecutor.execute(userMeta.keySet().iterator(),
+                    parallelism, userMeta.size(), new BatchExecutor.Task<String, Object>() {
+                        @Override
+                        public void run(String userMetaKey, CompletionHandler<Object> keyHandler) {
+                            OperationTrace<?> previous = OperationTrace.bind(trace);
+                            try {
+                                putUserMeta(mediaId, replaceUserMeta(userMetaKey), userMeta.get(userMetaKey));
+                                keyHandler.onCompleted(new Object());
+                            } catch (IOException e) {
+                                keyHandler.onThrowable(e);
+                            } catch (RicohAPIException e) {
+                                keyHandler.onThrowable(e);
+                            } finally {
+                                OperationTrace.unbind(previous);
+                            }
+                        }
+                    }, null);
+
+            Map<String, ItemResult<String, Object>> resultMap = new LinkedHashMap<>();
+            for (String userMetaKey : userMeta.keySet()) {
+                resultMap.put(userMetaKey, null);
+            }
+            for (ItemResult<String, Object> result : results) {
+                resultMap.put(result.getItem(), result);
+            }
+            handler.onCompleted(resultMap);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             handler.onThrowable(e);
         } catch (RicohAPIException e) {
             handler.onThrowable(e);
+        } finally {
+            OperationTrace.end(handler);
+        }
+    }
+
+    private void putUserMeta(String mediaId, String requestUserMetaKey, String value) throws IOException, RicohAPIException {
+        Map<String, String> header = new HashMap<>();
+        header.put("Content-Type", "text/plain");
+
+        TransportResponse response = transport.put(ENDPOINT + "/" + mediaId + USER_META_PATH + "/" + requestUserMetaKey, header, value);
+        try {
+            invalidate(mediaId, MediaCache.META);
+            if (!response.isSucceeded()) {
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
+            }
+            MediaMirror mirror = this.mirror;
+            if (mirror != null) {
+                mirror.putUserMeta(mediaId, requestUserMetaKey, value);
+            }
+        } finally {
+            response.close();
         }
     }
 
     public void removeMeta(String mediaId, String key, CompletionHandler<Object> handler) {
+        handler = OperationTrace.start(metrics, lane, MediaMetrics.Operation.REMOVE_META, handler);
+        TransportResponse response = null;
         try {
-            if (accessToken == null) {
+            if (tokenManager.getAccessToken() == null) {
                 throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
             }
-            RicohAPIRequest request;
             if (key == null) {
                 throw new RicohAPIException(0, "invalid parameter: null");
-            } else if (META_USER.equals(key)) {
+            }
+            String url;
+            String userMetaKey = null;
+            if (META_USER.equals(key)) {
                 // DELETE /media/{id}/meta/user
-                request = new RicohAPIRequest(ENDPOINT + "/" + mediaId + USER_META_PATH);
+                url = ENDPOINT + "/" + mediaId + USER_META_PATH;
             } else {
-                String userMetaKey = replaceUserMeta(key);
+                userMetaKey = replaceUserMeta(key);
                 if (userMetaKey == null) {
                     throw new RicohAPIException(0, "invalid parameter: " + key);
                 }
                 // DELETE /media/{id}/meta/user/{key}
-                request = new RicohAPIRequest(ENDPOINT + "/" + mediaId + USER_META_PATH + "/" + userMetaKey);
+                url = ENDPOINT + "/" + mediaId + USER_META_PATH + "/" + userMetaKey;
             }
             Map<String, String> header = new HashMap<>();
-            header.put("Authorization", "Bearer " + accessToken);
 
-            request.delete(header);
+            response = transport.delete(url, header);
+            invalidate(mediaId, MediaCache.META);
 
-            if (request.isSucceeded()) {
+            if (response.isSucceeded()) {
+                MediaMirror mirror = this.mirror;
+                if (mirror != null) {
+                    mirror.removeUserMeta(mediaId, userMetaKey);
+                }
                 handler.onCompleted(new Object());
             } else {
-                throw new RicohAPIException(request.getResponseCode(), request.getErrorBody());
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
             }
         } catch (IOException e) {
             handler.onThrowable(e);
         } catch (RicohAPIException e) {
             handler.onThrowable(e);
+        } finally {
+            closeQuietly(response);
+            OperationTrace.end(handler);
         }
     }
 
-    private String replaceUserMeta(String userMeta){
+    private void invalidate(String mediaId, String kind) {
+        ContentCache contentCache = this.contentCache;
+        if (contentCache != null && kind == null) {
+            contentCache.invalidate(mediaId);
+        }
+        MediaCache cache = this.cache;
+        if (cache != null) {
+            if (kind == null) {
+                cache.invalidate(mediaId);
+            } else {
+                cache.invalidate(mediaId, kind);
+            }
+        }
+    }
+
+    String replaceUserMeta(String userMeta){
         Pattern pattern = Pattern.compile(REPLACE_USER_META_REGEX);
         Matcher match = pattern.matcher(userMeta);
 
         return match.matches() ? match.group(FIRST) : null ;
     }
 
-    private boolean isValidValue(String value) {
+    boolean isValidValue(String value) {
         return (value.length() >= MIN_USER_META_LENGTH && value.length() <= MAX_USER_META_LENGTH);
     }
+
+    /**
+     * Decodes the response body straight from its stream, without building a String first.
+     */
+    static <T> T decode(TransportResponse response, Type type) throws IOException {
+        OperationTrace<?> trace = OperationTrace.current();
+        long start = trace == null ? 0 : System.nanoTime();
+        InputStream inputStream = response.getInputStream();
+        try {
+            return JSON.decode(inputStream, type);
+        } finally {
+            inputStream.close();
+            if (trace != null) {
+                trace.phaseCompleted(MediaMetrics.Phase.DECODE, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
 }
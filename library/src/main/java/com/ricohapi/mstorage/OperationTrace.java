@@ -0,0 +1,145 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+
+/**
+ * Ties the requests of one MediaStorage operation to its MediaMetrics and RequestScheduler lane.
+ * The trace is bound to the calling thread until the operation completes its handler or returns,
+ * which lets RicohAPIRequest report to it without changing the HttpTransport interface.
+ */
+class OperationTrace<T> implements CompletionHandler<T> {
+    private static final ThreadLocal<OperationTrace<?>> CURRENT = new ThreadLocal<>();
+
+    private final MediaMetrics metrics;
+    private final MediaMetrics.Operation operation;
+    private final RequestScheduler.Lane lane;
+    private final CompletionHandler<T> handler;
+    private final long start;
+    private final OperationTrace<?> previous;
+    private int remaining;
+    private boolean succeeded = true;
+
+    private OperationTrace(MediaMetrics metrics, RequestScheduler.Lane lane, MediaMetrics.Operation operation,
+                           CompletionHandler<T> handler, int completions) {
+        this.metrics = metrics;
+        this.lane = lane;
+        this.operation = operation;
+        this.handler = handler;
+        this.remaining = completions;
+        this.previous = CURRENT.get();
+        metrics.operationStarted(operation);
+        this.start = System.nanoTime();
+        CURRENT.set(this);
+    }
+
+    /**
+     * Starts tracing operation on the calling thread and returns handler wrapped so that it finishes the trace.
+     * Returns handler itself when metrics is MediaMetrics.NONE and there is no lane.
+     */
+    static <T> CompletionHandler<T> start(MediaMetrics metrics, RequestScheduler.Lane lane,
+                                          MediaMetrics.Operation operation, CompletionHandler<T> handler) {
+        return start(metrics, lane, operation, handler, 1);
+    }
+
+    /**
+     * Like start, for an operation that completes handler up to completions times.
+     * The trace finishes on the last completion or on the first throwable.
+     */
+    static <T> CompletionHandler<T> start(MediaMetrics metrics, RequestScheduler.Lane lane,
+                                          MediaMetrics.Operation operation, CompletionHandler<T> handler,
+                                          int completions) {
+        if ((metrics == MediaMetrics.NONE && lane == null) || completions < 1) {
+            return handler;
+        }
+        return new OperationTrace<>(metrics, lane, operation, handler, completions);
+    }
+
+    /**
+     * Finishes the trace of handler as failed if the operation returns without having completed it,
+     * as when a RuntimeException escapes. Traced operations call it in a finally block with the handler
+     * returned by start, so that the trace never stays bound to the thread.
+     */
+    static void end(CompletionHandler<?> handler) {
+        if (handler instanceof OperationTrace) {
+            ((OperationTrace<?>) handler).finish(true);
+        }
+    }
+
+    /**
+     * @return the trace bound to the calling thread, or null
+     */
+    static OperationTrace<?> current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds trace to the calling thread, for work that an operation hands to other threads.
+     * @return the trace to give to unbind
+     */
+    static OperationTrace<?> bind(OperationTrace<?> trace) {
+        OperationTrace<?> previous = CURRENT.get();
+        CURRENT.set(trace);
+        return previous;
+    }
+
+    static void unbind(OperationTrace<?> previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @return the lane the operation was declared in, or null
+     */
+    RequestScheduler.Lane getLane() {
+        return lane;
+    }
+
+    void phaseCompleted(MediaMetrics.Phase phase, long elapsedNanos) {
+        metrics.phaseCompleted(operation, phase, elapsedNanos);
+    }
+
+    void responseReceived(int responseCode) {
+        metrics.responseReceived(operation, responseCode);
+    }
+
+    void bytesTransferred(long sent, long received) {
+        metrics.bytesTransferred(operation, sent, received);
+    }
+
+    void retried() {
+        metrics.retried(operation);
+    }
+
+    @Override
+    public void onCompleted(T result) {
+        finish(false);
+        handler.onCompleted(result);
+    }
+
+    @Override
+    public void onThrowable(Throwable t) {
+        finish(true);
+        handler.onThrowable(t);
+    }
+
+    private void finish(boolean failed) {
+        synchronized (this) {
+            if (remaining == 0) return;
+            remaining = failed ? 0 : remaining - 1;
+            succeeded &= !failed;
+            if (remaining > 0) return;
+        }
+        metrics.operationFinished(operation, System.nanoTime() - start, succeeded);
+        if (CURRENT.get() == this) {
+            unbind(previous);
+        }
+    }
+}
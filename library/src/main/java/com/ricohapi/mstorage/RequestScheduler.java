@@ -0,0 +1,198 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits requests at up to permitsPerSecond, with bursts of up to burst requests, and
+ * shares that rate between lanes. Each lane has its own concurrency cap and a weight:
+ * while several lanes are waiting, they are served in proportion to their weights,
+ * and requests of the same lane are served in arrival order.
+ * By default INTERACTIVE has weight 4 and up to 8 requests in flight, BULK weight 1 and 4.
+ */
+public class RequestScheduler {
+    private static final long STRIDE_BASE = 1 << 20;
+
+    private final Object lock = new Object();
+    private final Clock clock;
+    private final double permitsPerNano;
+    private final double burst;
+    private final LaneState[] lanes;
+    private double tokens;
+    private long refilledAt;
+    private long virtualTime = 0;
+
+    public enum Lane {
+        INTERACTIVE,
+        BULK
+    }
+
+    /**
+     * The time source of a RequestScheduler. Replace it to test scheduling without waiting.
+     */
+    public interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public void sleep(long nanos) throws InterruptedException {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+        };
+
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    private static class LaneState {
+        final Queue<Object> waiters = new ArrayDeque<>();
+        int maxConcurrent;
+        long stride;
+        long pass = 0;
+        int inFlight = 0;
+        long grantedCount = 0;
+
+        LaneState(int maxConcurrent, int weight) {
+            this.maxConcurrent = maxConcurrent;
+            this.stride = STRIDE_BASE / weight;
+        }
+    }
+
+    public RequestScheduler(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, Clock.SYSTEM);
+    }
+
+    public RequestScheduler(double permitsPerSecond, int burst, Clock clock) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("invalid rate: permitsPerSecond=" + permitsPerSecond + ", burst=" + burst);
+        }
+        this.clock = clock;
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilledAt = clock.nanoTime();
+        this.lanes = new LaneState[Lane.values().length];
+        lanes[Lane.INTERACTIVE.ordinal()] = new LaneState(8, 4);
+        lanes[Lane.BULK.ordinal()] = new LaneState(4, 1);
+    }
+
+    /**
+     * @param maxConcurrent the number of requests of lane that may be in flight at once
+     * @param weight the share of the rate lane gets relative to the other lanes while they are all waiting
+     */
+    public void setLane(Lane lane, int maxConcurrent, int weight) {
+        if (maxConcurrent < 1 || weight < 1) {
+            throw new IllegalArgumentException("invalid lane settings: maxConcurrent=" + maxConcurrent + ", weight=" + weight);
+        }
+        synchronized (lock) {
+            LaneState state = lanes[lane.ordinal()];
+            state.maxConcurrent = maxConcurrent;
+            state.stride = STRIDE_BASE / weight;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until a request of lane may be sent. Every acquire must be followed by a release.
+     */
+    public void acquire(Lane lane) throws InterruptedException {
+        Object waiter = new Object();
+        LaneState state = lanes[lane.ordinal()];
+        synchronized (lock) {
+            if (state.waiters.isEmpty()) {
+                // a lane that was idle does not get credit for the time it did not use
+                state.pass = Math.max(state.pass, virtualTime);
+            }
+            state.waiters.add(waiter);
+            lock.notifyAll();
+        }
+        boolean granted = false;
+        try {
+            while (true) {
+                long waitNanos;
+                synchronized (lock) {
+                    if (next() != state || state.waiters.peek() != waiter) {
+                        lock.wait();
+                        continue;
+                    }
+                    refill();
+                    if (tokens >= 1) {
+                        tokens -= 1;
+                        state.waiters.remove();
+                        state.inFlight++;
+                        state.grantedCount++;
+                        virtualTime = state.pass;
+                        state.pass += state.stride;
+                        granted = true;
+                        lock.notifyAll();
+                        return;
+                    }
+                    waitNanos = (long) Math.ceil((1 - tokens) / permitsPerNano);
+                }
+                clock.sleep(waitNanos);
+            }
+        } finally {
+            if (!granted) {
+                synchronized (lock) {
+                    state.waiters.remove(waiter);
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    public void release(Lane lane) {
+        synchronized (lock) {
+            lanes[lane.ordinal()].inFlight--;
+            lock.notifyAll();
+        }
+    }
+
+    public int getInFlight(Lane lane) {
+        synchronized (lock) {
+            return lanes[lane.ordinal()].inFlight;
+        }
+    }
+
+    public int getQueued(Lane lane) {
+        synchronized (lock) {
+            return lanes[lane.ordinal()].waiters.size();
+        }
+    }
+
+    public long getGrantedCount(Lane lane) {
+        synchronized (lock) {
+            return lanes[lane.ordinal()].grantedCount;
+        }
+    }
+
+    /**
+     * @return the waiting lane with the lowest pass that is under its concurrency cap, or null
+     */
+    private LaneState next() {
+        LaneState next = null;
+        for (LaneState state : lanes) {
+            if (!state.waiters.isEmpty() && state.inFlight < state.maxConcurrent
+                    && (next == null || state.pass < next.pass)) {
+                next = state;
+            }
+        }
+        return next;
+    }
+
+    private void refill() {
+        long now = clock.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * permitsPerNano);
+        refilledAt = now;
+    }
+}
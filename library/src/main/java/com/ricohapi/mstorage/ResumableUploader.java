@@ -0,0 +1,399 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.auth.RicohAPIException;
+import com.ricohapi.mstorage.entity.ItemResult;
+import com.ricohapi.mstorage.entity.MediaInfo;
+
+import net.arnx.jsonic.TypeReference;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Uploads a file in fixed-size parts that are sent on up to parallelism connections and recorded in
+ * a journal once the server confirms them. When an upload fails, calling upload again with the same
+ * file resumes from the confirmed parts, also after a restart of the process.
+ * <p>
+ * The parts are sent with this session protocol:
+ * <ul>
+ * <li>POST /media/uploads with {"bytes": length, "part_size": partSize} answers {"upload_id": id}</li>
+ * <li>POST /media/uploads/{id}/parts/{number} with the bytes of part number, counted from 0</li>
+ * <li>POST /media/uploads/{id}/complete answers the MediaInfo of the new media</li>
+ * </ul>
+ * A server that answers the first request with 404, 405 or 501 does not support sessions,
+ * and the file is sent with a single MediaStorage.upload instead.
+ */
+public class ResumableUploader {
+    public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final String UPLOADS_PATH = "/uploads";
+    private static final String PARTS_PATH = "/parts/";
+    private static final String COMPLETE_PATH = "/complete";
+    private static final String JOURNAL_SUFFIX = ".parts";
+    private static final String CHARSET = "UTF-8";
+    private static final char SEPARATOR = '\t';
+
+    private final MediaStorage mediaStorage;
+    private final File journalDir;
+    private final long partSize;
+    private final int parallelism;
+    private final RetryPolicy retryPolicy;
+
+    public ResumableUploader(MediaStorage mediaStorage, File journalDir) {
+        this(mediaStorage, journalDir, DEFAULT_PART_SIZE, DEFAULT_PARALLELISM, new RetryPolicy());
+    }
+
+    /**
+     * @param retryPolicy how often a part is sent again after an IOException or a retryable status
+     */
+    public ResumableUploader(MediaStorage mediaStorage, File journalDir, long partSize, int parallelism,
+                             RetryPolicy retryPolicy) {
+        if (partSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("invalid partSize: " + partSize + ", parallelism: " + parallelism);
+        }
+        this.mediaStorage = mediaStorage;
+        this.journalDir = journalDir;
+        this.partSize = partSize;
+        this.parallelism = parallelism;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Blocks until every part is confirmed and the session is completed.
+     * A session the server no longer knows is dropped, so the next call starts over.
+     */
+    public void upload(File file, CompletionHandler<MediaInfo> handler) {
+        try {
+            if (mediaStorage.getTokenManager().getAccessToken() == null) {
+                throw new RicohAPIException(0, "wrong usage: use the connect method to get an access token.");
+            }
+            Journal journal = Journal.open(journalFile(file), file, partSize);
+            if (journal == null) {
+                String uploadId = createSession(file.length());
+                if (uploadId == null) {
+                    mediaStorage.upload(file, handler);
+                    return;
+                }
+                journal = Journal.create(journalFile(file), file, partSize, uploadId);
+            }
+            try {
+                handler = OperationTrace.start(mediaStorage.getMetrics(), mediaStorage.getLane(),
+                        MediaMetrics.Operation.UPLOAD, handler);
+                upload(file, journal, handler);
+            } finally {
+                OperationTrace.end(handler);
+                journal.close();
+            }
+        } catch (IOException e) {
+            handler.onThrowable(e);
+        } catch (RicohAPIException e) {
+            handler.onThrowable(e);
+        }
+    }
+
+    private void upload(File file, final Journal journal, CompletionHandler<MediaInfo> handler) throws IOException {
+        final long length = file.length();
+        long partCount = (length + partSize - 1) / partSize;
+        List<Long> parts = new ArrayList<>();
+        for (long part = 0; part < partCount; part++) {
+            if (!journal.isConfirmed(part)) {
+                parts.add(part);
+            }
+        }
+
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = source.getChannel();
+            final OperationTrace<?> trace = OperationTrace.current();
+            List<ItemResult<Long, Long>> results = BatchExecutor.execute(parts.iterator(), parallelism, parts.size(),
+                    new BatchExecutor.Task<Long, Long>() {
+                        @Override
+                        public void run(Long part, CompletionHandler<Long> partHandler) {
+                            OperationTrace<?> previous = OperationTrace.bind(trace);
+                            try {
+                                long offset = part * partSize;
+                                sendPart(journal.getUploadId(), part, channel, offset, Math.min(partSize, length - offset));
+                                journal.confirm(part);
+                                partHandler.onCompleted(part);
+                            } catch (IOException e) {
+                                partHandler.onThrowable(e);
+                            } catch (RicohAPIException e) {
+                                partHandler.onThrowable(e);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                partHandler.onThrowable(e);
+                            } finally {
+                                OperationTrace.unbind(previous);
+                            }
+                        }
+                    }, null);
+            for (ItemResult<Long, Long> result : results) {
+                if (!result.isSucceeded()) {
+                    dropIfUnknown(journal, result.getThrowable());
+                    handler.onThrowable(result.getThrowable());
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handler.onThrowable(e);
+            return;
+        } finally {
+            source.close();
+        }
+
+        try {
+            MediaInfo mediaInfo = completeSession(journal.getUploadId());
+            journal.delete();
+            MediaMirror mirror = mediaStorage.getMirror();
+            if (mirror != null) {
+                mirror.put(mediaInfo);
+            }
+            handler.onCompleted(mediaInfo);
+        } catch (RicohAPIException e) {
+            dropIfUnknown(journal, e);
+            handler.onThrowable(e);
+        }
+    }
+
+    private static void dropIfUnknown(Journal journal, Throwable t) throws IOException {
+        if (t instanceof RicohAPIException
+                && ((RicohAPIException) t).getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+            journal.delete();
+        }
+    }
+
+    /**
+     * @return the id of the new session, or null when the server does not support sessions
+     */
+    private String createSession(long length) throws IOException, RicohAPIException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("bytes", length);
+        params.put("part_size", partSize);
+        TransportResponse response = mediaStorage.getAuthorizedTransport().post(MediaStorage.ENDPOINT + UPLOADS_PATH,
+                new HashMap<String, String>(), params, RicohAPIRequest.ParamType.JSON);
+        try {
+            int responseCode = response.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_BAD_METHOD
+                    || responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                return null;
+            }
+            if (!response.isSucceeded()) {
+                throw new RicohAPIException(responseCode, response.getErrorBody());
+            }
+            Map<String, Object> session = MediaStorage.decode(response, new TypeReference<Map<String, Object>>() {});
+            Object uploadId = session.get("upload_id");
+            if (uploadId == null) {
+                throw new RicohAPIException(responseCode, "no upload_id in " + session);
+            }
+            return uploadId.toString();
+        } finally {
+            response.close();
+        }
+    }
+
+    private void sendPart(String uploadId, long part, FileChannel channel, long offset, long length)
+            throws IOException, RicohAPIException, InterruptedException {
+        String url = MediaStorage.ENDPOINT + UPLOADS_PATH + "/" + uploadId + PARTS_PATH + part;
+        Map<String, String> header = new HashMap<>();
+        header.put("Content-Type", "application/octet-stream");
+        TokenManager tokenManager = mediaStorage.getTokenManager();
+        for (int attempt = 1; ; attempt++) {
+            boolean last = attempt >= retryPolicy.getMaxAttempts();
+            String token = tokenManager.getAccessToken();
+            TransportResponse response;
+            try {
+                response = mediaStorage.getAuthorizedTransport().upload(url, header,
+                        new PartInputStream(channel, offset, length), length);
+            } catch (IOException e) {
+                if (last) throw e;
+                retried(attempt);
+                continue;
+            }
+            try {
+                int responseCode = response.getResponseCode();
+                if (response.isSucceeded()) {
+                    return;
+                }
+                boolean unauthorized = responseCode == HttpURLConnection.HTTP_UNAUTHORIZED
+                        && tokenManager.refresh(token) != null;
+                if (last || !(unauthorized || retryPolicy.isRetryable(responseCode))) {
+                    throw new RicohAPIException(responseCode, response.getErrorBody());
+                }
+            } finally {
+                response.close();
+            }
+            retried(attempt);
+        }
+    }
+
+    private void retried(int attempt) throws InterruptedException {
+        OperationTrace<?> trace = OperationTrace.current();
+        if (trace != null) {
+            trace.retried();
+        }
+        Thread.sleep(retryPolicy.backoffMillis(attempt));
+    }
+
+    private MediaInfo completeSession(String uploadId) throws IOException, RicohAPIException {
+        TransportResponse response = mediaStorage.getAuthorizedTransport().post(
+                MediaStorage.ENDPOINT + UPLOADS_PATH + "/" + uploadId + COMPLETE_PATH,
+                new HashMap<String, String>(), new HashMap<String, Object>(), RicohAPIRequest.ParamType.JSON);
+        try {
+            if (!response.isSucceeded()) {
+                throw new RicohAPIException(response.getResponseCode(), response.getErrorBody());
+            }
+            return MediaStorage.decode(response, MediaInfo.class);
+        } finally {
+            response.close();
+        }
+    }
+
+    private File journalFile(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        return new File(journalDir, Integer.toHexString(path.hashCode()) + "-" + file.length() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * The session of one file: a header line "uploadId TAB partSize TAB length TAB lastModified TAB path"
+     * followed by the number of each confirmed part, one per line.
+     */
+    private static class Journal {
+        private final File file;
+        private final String uploadId;
+        private final Set<Long> confirmed;
+        private final Writer writer;
+
+        private Journal(File file, String uploadId, Set<Long> confirmed, boolean append) throws IOException {
+            this.file = file;
+            this.uploadId = uploadId;
+            this.confirmed = confirmed;
+            this.writer = new OutputStreamWriter(new FileOutputStream(file, append), CHARSET);
+        }
+
+        /**
+         * @return the journal of source, or null when there is none or it belongs to another content or part size
+         */
+        static Journal open(File file, File source, long partSize) throws IOException {
+            if (!file.exists()) return null;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            String uploadId = null;
+            Set<Long> confirmed = new HashSet<>();
+            try {
+                String header = reader.readLine();
+                String expected = header("", source, partSize);
+                if (header != null && header.endsWith(expected)) {
+                    uploadId = header.substring(0, header.length() - expected.length());
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        try {
+                            confirmed.add(Long.parseLong(line));
+                        } catch (NumberFormatException e) {
+                            // a line cut short by a crash
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            if (uploadId == null || uploadId.isEmpty()) {
+                file.delete();
+                return null;
+            }
+            return new Journal(file, uploadId, confirmed, true);
+        }
+
+        static Journal create(File file, File source, long partSize, String uploadId) throws IOException {
+            Journal journal = new Journal(file, uploadId, new HashSet<Long>(), false);
+            journal.writer.write(header(uploadId, source, partSize) + "\n");
+            journal.writer.flush();
+            return journal;
+        }
+
+        private static String header(String uploadId, File source, long partSize) throws IOException {
+            return uploadId + SEPARATOR + partSize + SEPARATOR + source.length()
+                    + SEPARATOR + source.lastModified() + SEPARATOR + source.getCanonicalPath();
+        }
+
+        String getUploadId() {
+            return uploadId;
+        }
+
+        synchronized boolean isConfirmed(long part) {
+            return confirmed.contains(part);
+        }
+
+        synchronized void confirm(long part) throws IOException {
+            confirmed.add(part);
+            writer.write(part + "\n");
+            writer.flush();
+        }
+
+        synchronized void delete() throws IOException {
+            writer.close();
+            file.delete();
+        }
+
+        synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads length bytes of channel from offset without moving its position,
+     * so parts can be read concurrently from one channel.
+     */
+    private static class PartInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        PartInputStream(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.position = offset;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, remaining)), position);
+            if (read < 0) {
+                throw new IOException("file shorter than expected at " + position);
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+    }
+}
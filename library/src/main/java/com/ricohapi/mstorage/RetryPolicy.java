@@ -0,0 +1,91 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.util.Random;
+
+/**
+ * Decides how a RetryingTransport retries: up to maxAttempts attempts in total, waiting a random
+ * time between 0 and baseDelayMillis * 2^(attempt - 1), capped at maxDelayMillis, before each retry.
+ * A Retry-After header replaces the backoff; a Retry-After longer than maxDelayMillis is not waited for.
+ * Retries are also limited by a budget that grows by budgetRatio per request, so that at most
+ * about budgetRatio of the requests are retried under sustained failures.
+ */
+public class RetryPolicy {
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final double budgetRatio;
+    private final Random random = new Random();
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 200;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10 * 1000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+
+    /** Retries that may be spent at once before the budget has to be earned back. */
+    static final int BUDGET_RESERVE = 10;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_BUDGET_RATIO);
+    }
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, double budgetRatio) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis || budgetRatio < 0) {
+            throw new IllegalArgumentException("invalid retry settings: maxAttempts=" + maxAttempts
+                    + ", baseDelayMillis=" + baseDelayMillis + ", maxDelayMillis=" + maxDelayMillis
+                    + ", budgetRatio=" + budgetRatio);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budgetRatio = budgetRatio;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * @return true for the status codes of an overloaded or temporarily unavailable server
+     */
+    boolean isRetryable(int responseCode) {
+        switch (responseCode) {
+            case 408:
+            case 429:
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param attempt the attempt that just failed, from 1
+     */
+    long backoffMillis(int attempt) {
+        long ceiling = baseDelayMillis << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxDelayMillis) {
+            ceiling = maxDelayMillis;
+        }
+        return (long) (random.nextDouble() * ceiling);
+    }
+}
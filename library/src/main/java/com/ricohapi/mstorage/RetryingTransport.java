@@ -0,0 +1,240 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HttpTransport that retries the requests of another one and guards them with a CircuitBreaker.
+ * Only get, download, delete and the post of a search are retried. Other posts, such as those of
+ * ResumableUploader's upload sessions, change state on the server, and an upload or put body cannot be
+ * sent twice. Every request goes through the circuit breaker.
+ * A request is retried after an IOException or a 408, 429, 500, 502, 503 or 504 response;
+ * once the attempts or the retry budget run out, the last response is returned as is.
+ */
+public class RetryingTransport implements HttpTransport {
+    private static final long BUDGET_UNIT = 1000;
+    private static final String RETRY_AFTER_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final HttpTransport transport;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final AtomicLong budget;
+    private final AtomicLong retryCount = new AtomicLong();
+
+    private interface Call {
+        TransportResponse send() throws IOException;
+    }
+
+    public RetryingTransport(HttpTransport transport) {
+        this(transport, new RetryPolicy(), new CircuitBreaker());
+    }
+
+    public RetryingTransport(HttpTransport transport, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker) {
+        this.transport = transport;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.budget = new AtomicLong(RetryPolicy.BUDGET_RESERVE * BUDGET_UNIT);
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    @Override
+    public TransportResponse get(final String url, final Map<String, ?> queryParams,
+                                 final Map<String, String> header) throws IOException {
+        return execute(new Call() {
+            @Override
+            public TransportResponse send() throws IOException {
+                return transport.get(url, queryParams, header);
+            }
+        }, true);
+    }
+
+    @Override
+    public TransportResponse post(final String url, final Map<String, String> header, final Map<String, ?> params,
+                                  final RicohAPIRequest.ParamType paramType) throws IOException {
+        return execute(new Call() {
+            @Override
+            public TransportResponse send() throws IOException {
+                return transport.post(url, header, params, paramType);
+            }
+        }, url.endsWith(MediaStorage.SEARCH_PATH));
+    }
+
+    @Override
+    public TransportResponse put(final String url, final Map<String, String> header, final String value) throws IOException {
+        return execute(new Call() {
+            @Override
+            public TransportResponse send() throws IOException {
+                return transport.put(url, header, value);
+            }
+        }, false);
+    }
+
+    @Override
+    public TransportResponse delete(final String url, final Map<String, String> header) throws IOException {
+        return execute(new Call() {
+            @Override
+            public TransportResponse send() throws IOException {
+                return transport.delete(url, header);
+            }
+        }, true);
+    }
+
+    @Override
+    public TransportResponse upload(final String url, final Map<String, String> header, final InputStream inputStream,
+                                    final long contentLength) throws IOException {
+        return execute(new Call() {
+            @Override
+            public TransportResponse send() throws IOException {
+                return transport.upload(url, header, inputStream, contentLength);
+            }
+        }, false);
+    }
+
+    @Override
+    public TransportResponse download(final String url, final Map<String, String> header) throws IOException {
+        return execute(new Call() {
+            @Override
+            public TransportResponse send() throws IOException {
+                return transport.download(url, header);
+            }
+        }, true);
+    }
+
+    private TransportResponse execute(Call call, boolean retryable) throws IOException {
+        deposit();
+        for (int attempt = 1; ; attempt++) {
+            circuitBreaker.acquire();
+            TransportResponse response = null;
+            int responseCode;
+            try {
+                response = call.send();
+                responseCode = response.getResponseCode();
+            } catch (IOException e) {
+                circuitBreaker.onFailure();
+                if (response != null) {
+                    response.close();
+                }
+                if (!retryable || !isTransient(e) || !withdraw(attempt)) {
+                    throw e;
+                }
+                sleep(retryPolicy.backoffMillis(attempt));
+                continue;
+            } catch (RuntimeException e) {
+                // still report the attempt, or a half-open breaker would wait for its trial forever
+                circuitBreaker.onFailure();
+                if (response != null) {
+                    response.close();
+                }
+                throw e;
+            }
+
+            if (!retryPolicy.isRetryable(responseCode)) {
+                circuitBreaker.onSuccess();
+                return response;
+            }
+            circuitBreaker.onFailure();
+            long delay = retryAfterMillis(response.getHeaderField("Retry-After"));
+            if (delay < 0) {
+                delay = retryPolicy.backoffMillis(attempt);
+            }
+            if (!retryable || delay > retryPolicy.getMaxDelayMillis() || !withdraw(attempt)) {
+                return response;
+            }
+            response.close();
+            sleep(delay);
+        }
+    }
+
+    private static boolean isTransient(IOException e) {
+        if (e instanceof CircuitOpenException) return false;
+        // a timeout is worth another try, an interrupted thread is not
+        return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+    }
+
+    private void deposit() {
+        long max = RetryPolicy.BUDGET_RESERVE * BUDGET_UNIT;
+        long amount = (long) (retryPolicy.getBudgetRatio() * BUDGET_UNIT);
+        long current;
+        do {
+            current = budget.get();
+            if (current >= max) return;
+        } while (!budget.compareAndSet(current, Math.min(max, current + amount)));
+    }
+
+    /**
+     * Takes one retry from the budget if attempt was not the last one.
+     */
+    private boolean withdraw(int attempt) {
+        if (attempt >= retryPolicy.getMaxAttempts()) return false;
+        long current;
+        do {
+            current = budget.get();
+            if (current < BUDGET_UNIT) return false;
+        } while (!budget.compareAndSet(current, current - BUDGET_UNIT));
+        retryCount.incrementAndGet();
+        OperationTrace<?> trace = OperationTrace.current();
+        if (trace != null) {
+            trace.retried();
+        }
+        return true;
+    }
+
+    /**
+     * @return the delay asked by a Retry-After header in seconds or as an HTTP date, or -1
+     */
+    static long retryAfterMillis(String retryAfter) {
+        if (retryAfter == null) return -1;
+        String value = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // not a number of seconds
+        }
+        SimpleDateFormat format = new SimpleDateFormat(RETRY_AFTER_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to retry");
+        }
+    }
+}
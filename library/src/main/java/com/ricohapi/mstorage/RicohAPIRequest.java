@@ -9,23 +9,66 @@ import net.arnx.jsonic.JSON;
 
 import org.apache.commons.lang.StringUtils;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
-public class RicohAPIRequest {
+public class RicohAPIRequest implements TransportResponse {
     private HttpURLConnection connection;
     private URL url;
+    private ConnectionPool pool;
+    private boolean sent = false;
+    private boolean acquired = false;
+    private boolean streamClosed = false;
+    private boolean closed = false;
     private String responseBody = null;
     private String errorBody = null;
+    private OperationTrace<?> trace;
+    private int responseCode = -1;
+    // body bytes on the wire, and before encoding or after decoding
+    private long sentBytes = 0;
+    private long receivedBytes = 0;
+    private long bodyBytes = 0;
+    private long decodedBytes = 0;
+    private long requestSentAt;
+    private long respondedAt;
+
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
+
+    private static final long MAX_DRAIN_LENGTH = 64 * 1024;
+    private static final int BODY_BUFFER_SIZE = 4 * 1024;
+
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+    private static final String IDENTITY = "identity";
+    private static final String GZIP = "gzip";
+    private static final String X_GZIP = "x-gzip";
+    private static final String DEFLATE = "deflate";
+
+    public static final long UNKNOWN_LENGTH = -1;
 
     public enum ParamType {
         URLENCODE,
@@ -33,107 +76,271 @@ public class RicohAPIRequest {
     }
 
     public RicohAPIRequest(String urlString) throws IOException {
-        this.url = new URL(urlString);
-        connection = (HttpURLConnection)url.openConnection();
+        this(urlString, (ConnectionPool) null);
     }
 
     public RicohAPIRequest(String urlString, Map<String, ?> queryParams) throws IOException {
+        this(urlString, queryParams, null);
+    }
+
+    /**
+     * Creates a request whose connection is limited and timed out by pool.
+     * Such a request must be closed to give its connection back to the pool.
+     */
+    public RicohAPIRequest(String urlString, ConnectionPool pool) throws IOException {
+        this.url = new URL(urlString);
+        openConnection(pool);
+    }
+
+    public RicohAPIRequest(String urlString, Map<String, ?> queryParams, ConnectionPool pool) throws IOException {
         this.url = new URL(urlString + "?" + joinParameters(queryParams, ParamType.URLENCODE));
+        openConnection(pool);
+    }
+
+    private void openConnection(ConnectionPool pool) throws IOException {
+        this.pool = pool;
+        this.trace = OperationTrace.current();
         connection = (HttpURLConnection)url.openConnection();
+        if (pool != null) {
+            connection.setConnectTimeout(pool.getConnectTimeout());
+            connection.setReadTimeout(pool.getReadTimeout());
+        } else {
+            connection.setConnectTimeout(ConnectionPool.DEFAULT_CONNECT_TIMEOUT);
+            connection.setReadTimeout(ConnectionPool.DEFAULT_READ_TIMEOUT);
+        }
     }
 
-    public void get(Map<String, String> header) throws IOException {
-        connection.setRequestMethod("GET");
-        connection.setDoOutput(false);
+    private void acquire() throws IOException {
+        if (pool != null && !acquired) {
+            pool.acquire(url);
+            acquired = true;
+        }
+        sent = true;
+    }
+
+    /**
+     * Connects right away when traced, so that connecting is timed apart from the rest of the request.
+     */
+    private void connect() throws IOException {
+        if (trace == null) return;
+        long start = System.nanoTime();
+        connection.connect();
+        requestSentAt = System.nanoTime();
+        trace.phaseCompleted(MediaMetrics.Phase.CONNECT, requestSentAt - start);
+    }
+
+    private void written(long start) {
+        if (trace == null) return;
+        requestSentAt = System.nanoTime();
+        trace.phaseCompleted(MediaMetrics.Phase.WRITE, requestSentAt - start);
+    }
+
+    /**
+     * Sets header and asks for an encoded response unless header says otherwise.
+     */
+    private void setHeaders(Map<String, String> header) {
         for (String key : header.keySet()) {
             connection.setRequestProperty(key, header.get(key));
         }
+        if (!header.containsKey(ACCEPT_ENCODING)) {
+            connection.setRequestProperty(ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+        }
     }
 
-    public InputStream download(Map<String, String> header) throws IOException {
+    public void get(Map<String, String> header) throws IOException {
+        acquire();
         connection.setRequestMethod("GET");
         connection.setDoOutput(false);
-        for (String key : header.keySet()) {
-            connection.setRequestProperty(key, header.get(key));
-        }
-        return connection.getInputStream();
+        setHeaders(header);
+        connect();
+    }
+
+    public InputStream download(Map<String, String> header) throws IOException {
+        get(identity(header));
+        return getInputStream();
+    }
+
+    /**
+     * Media contents are asked unencoded, so that Content-Length and ranges count their own bytes.
+     */
+    static Map<String, String> identity(Map<String, String> header) {
+        Map<String, String> identity = new HashMap<>(header);
+        identity.put(ACCEPT_ENCODING, IDENTITY);
+        return identity;
     }
 
     public void post(Map<String, String> header, Map<String, ?> params, ParamType paramType) throws IOException {
+        acquire();
         connection.setRequestMethod("POST");
         connection.setDoOutput(true);
-        for (String key : header.keySet()) {
-            connection.setRequestProperty(key, header.get(key));
-        }
+        setHeaders(header);
         if (ParamType.JSON == paramType) {
             connection.setRequestProperty("Content-Type", "application/json");
         }
-        DataOutputStream os = new DataOutputStream(connection.getOutputStream());
-        os.writeBytes(joinParameters(params, paramType));
+        writeBody(joinParameters(params, paramType).getBytes("UTF-8"));
     }
 
     public void delete(Map<String, String> header) throws IOException {
+        acquire();
         connection.setRequestMethod("DELETE");
         connection.setDoOutput(false);
-        for (String key : header.keySet()) {
-            connection.setRequestProperty(key, header.get(key));
-        }
+        setHeaders(header);
+        connect();
     }
 
     public void upload(Map<String, String> header, InputStream inputStream) throws IOException {
+        upload(header, inputStream, UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Streams the body to the server without buffering it in the heap.
+     * Uses fixed-length streaming when contentLength is known and chunked streaming otherwise.
+     */
+    public void upload(Map<String, String> header, InputStream inputStream, long contentLength) throws IOException {
+        acquire();
         connection.setRequestMethod("POST");
         connection.setDoOutput(true);
-        for (String key : header.keySet()) {
-            connection.setRequestProperty(key, header.get(key));
+        setHeaders(header);
+        if (contentLength >= 0) {
+            connection.setFixedLengthStreamingMode(contentLength);
+        } else {
+            connection.setChunkedStreamingMode(0);
         }
-        DataOutputStream os = new DataOutputStream(connection.getOutputStream());
-        byte[] bytes = new byte[1024];
-        while (true) {
-            int read = inputStream.read(bytes);
-            if (read <= 0) return;
-            os.write(bytes, 0, read);
-            os.flush();
+        connect();
+        long start = System.nanoTime();
+        OutputStream os = connection.getOutputStream();
+        try {
+            byte[] buffer = TRANSFER_BUFFER.get();
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+                sentBytes += read;
+                bodyBytes += read;
+            }
+        } finally {
+            os.close();
         }
+        written(start);
     }
 
     public void put(Map<String, String> header, String value) throws IOException {
+        acquire();
         connection.setRequestMethod("PUT");
-        for (String key : header.keySet()) {
-            connection.setRequestProperty(key, header.get(key));
-        }
+        setHeaders(header);
 
         connection.setDoOutput(true);
-        OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-        out.write(value);
-        out.flush();
-        out.close();
+        writeBody(value.getBytes("UTF-8"));
     }
 
+    /**
+     * Writes body, gzip encoded when the pool's request compression threshold is reached.
+     */
+    private void writeBody(byte[] body) throws IOException {
+        long threshold = pool == null ? ConnectionPool.NO_REQUEST_COMPRESSION : pool.getRequestCompressionThreshold();
+        byte[] wire = body;
+        if (threshold != ConnectionPool.NO_REQUEST_COMPRESSION && body.length >= threshold) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(body.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(encoded);
+            gzip.write(body);
+            gzip.close();
+            wire = encoded.toByteArray();
+            connection.setRequestProperty(CONTENT_ENCODING, GZIP);
+        }
+        connect();
+        long start = System.nanoTime();
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(wire);
+            out.flush();
+        } finally {
+            out.close();
+        }
+        sentBytes += wire.length;
+        bodyBytes += body.length;
+        written(start);
+    }
+
+    @Override
     public String getResponseBody() throws IOException {
         if (this.responseBody == null) {
-            this.responseBody = getBody(connection.getInputStream());
+            this.responseBody = readFully(connection.getInputStream());
         }
         return this.responseBody;
     }
 
+    @Override
     public String getErrorBody() throws IOException {
         if (this.errorBody == null) {
-            this.errorBody = getBody(connection.getErrorStream());
+            InputStream errorStream = connection.getErrorStream();
+            this.errorBody = errorStream == null ? "" : readFully(errorStream);
         }
         return this.errorBody;
     }
 
-    private static String getBody(InputStream inputStream) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
-        String line;
+    /**
+     * Reads and decodes the whole body, then closes it, which leaves the connection reusable.
+     */
+    private String readFully(InputStream inputStream) throws IOException {
+        InputStream decoded = decode(inputStream);
+        String body = getBody(decoded);
+        streamClosed = true;
+        decoded.close();
+        return body;
+    }
+
+    /**
+     * Decodes inputStream as its Content-Encoding says, counting the bytes on both sides.
+     * A deflate body is accepted with or without its zlib wrapper, as servers differ.
+     */
+    private InputStream decode(InputStream inputStream) throws IOException {
+        InputStream in = new CountingInputStream(inputStream, true);
+        String encoding = connection.getContentEncoding();
+        encoding = encoding == null ? IDENTITY : encoding.trim().toLowerCase(Locale.US);
+        if (GZIP.equals(encoding) || X_GZIP.equals(encoding) || DEFLATE.equals(encoding)) {
+            PushbackInputStream peek = new PushbackInputStream(in, 2);
+            int first = peek.read();
+            if (first == -1) {
+                // an empty body, which has no header to decode
+                return new CountingInputStream(peek, false);
+            }
+            int second = peek.read();
+            if (second != -1) {
+                peek.unread(second);
+            }
+            peek.unread(first);
+            if (DEFLATE.equals(encoding)) {
+                boolean zlib = second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+                final Inflater inflater = new Inflater(!zlib);
+                in = new InflaterInputStream(peek, inflater, BODY_BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            } else {
+                in = new GZIPInputStream(peek, BODY_BUFFER_SIZE);
+            }
+        }
+        return new CountingInputStream(in, false);
+    }
+
+    static String getBody(InputStream inputStream) throws IOException {
+        if (inputStream == null) return "";
+        Reader reader = new InputStreamReader(inputStream, "UTF-8");
+        char[] buffer = new char[BODY_BUFFER_SIZE];
         StringBuilder builder = new StringBuilder();
-        while ((line = reader.readLine()) != null) {
-            builder.append(line);
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            builder.append(buffer, 0, read);
         }
         return builder.toString();
     }
 
-    private static String joinParameters(Map<String, ?> paramMap, ParamType paramType) {
+    static String joinParameters(Map<String, ?> paramMap, ParamType paramType) {
         switch (paramType) {
             case URLENCODE:
                 List<String> paramList = new ArrayList<>();
@@ -149,13 +356,159 @@ public class RicohAPIRequest {
         }
     }
 
+    @Override
     public boolean isSucceeded() throws IOException {
-        int responseCode = connection.getResponseCode();
+        int responseCode = getResponseCode();
         return responseCode >= 200 && responseCode < 300;
     }
 
+    @Override
     public int getResponseCode() throws IOException {
-        return connection.getResponseCode();
+        if (responseCode == -1) {
+            responseCode = connection.getResponseCode();
+            if (trace != null) {
+                respondedAt = System.nanoTime();
+                trace.phaseCompleted(MediaMetrics.Phase.FIRST_BYTE, respondedAt - requestSentAt);
+                trace.responseReceived(responseCode);
+            }
+        }
+        return responseCode;
     }
 
-}
\ No newline at end of file
+    /**
+     * Returns the response stream, decoded. Closing it also closes this request.
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new FilterInputStream(decode(connection.getInputStream())) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    streamClosed = true;
+                    RicohAPIRequest.this.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        return connection.getHeaderField(name);
+    }
+
+    /**
+     * Drains and closes the response so that its connection can be kept alive,
+     * and gives the connection back to the pool. Responses with more than 64 KB
+     * left unread, and requests whose response status was never read, are disconnected instead.
+     * Nothing is sent when the request never got a connection from the pool.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (!sent) return;
+        boolean reusable;
+        if (streamClosed) {
+            // HttpURLConnection decided on keep-alive when the stream was closed
+            reusable = true;
+        } else if (responseCode == -1) {
+            // asking for the response now could send the request again, e.g. after a failed connect
+            reusable = false;
+            connection.disconnect();
+        } else {
+            try {
+                InputStream inputStream = isSucceeded() ? connection.getInputStream() : connection.getErrorStream();
+                reusable = drain(inputStream);
+            } catch (IOException e) {
+                reusable = false;
+            }
+            if (!reusable) {
+                connection.disconnect();
+            }
+        }
+        if (acquired) {
+            pool.release(url, reusable);
+        }
+        if (pool != null) {
+            pool.transferred(bodyBytes, sentBytes, decodedBytes, receivedBytes);
+        }
+        if (trace != null) {
+            if (respondedAt != 0) {
+                trace.phaseCompleted(MediaMetrics.Phase.READ, System.nanoTime() - respondedAt);
+            }
+            trace.bytesTransferred(sentBytes, receivedBytes);
+        }
+    }
+
+    private static boolean drain(InputStream inputStream) {
+        if (inputStream == null) return true;
+        try {
+            byte[] buffer = TRANSFER_BUFFER.get();
+            long drained = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAIN_LENGTH) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+
+    /**
+     * Counts the response bytes read by the caller, on the wire or after decoding.
+     */
+    private class CountingInputStream extends FilterInputStream {
+        private final boolean wire;
+
+        CountingInputStream(InputStream in, boolean wire) {
+            super(in);
+            this.wire = wire;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) {
+            if (wire) {
+                receivedBytes += n;
+            } else {
+                decodedBytes += n;
+            }
+        }
+    }
+}
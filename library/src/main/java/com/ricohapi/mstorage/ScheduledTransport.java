@@ -0,0 +1,186 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Map;
+
+/**
+ * An HttpTransport that sends the requests of another one only when a RequestScheduler admits them.
+ * A request counts against its lane until its response is closed. The lane is the one declared
+ * with MediaStorage.withLane, or defaultLane.
+ * Wrap it in a RetryingTransport so that retries are scheduled too.
+ */
+public class ScheduledTransport implements HttpTransport {
+    private final HttpTransport transport;
+    private final RequestScheduler scheduler;
+    private final RequestScheduler.Lane defaultLane;
+
+    public ScheduledTransport(HttpTransport transport, RequestScheduler scheduler) {
+        this(transport, scheduler, RequestScheduler.Lane.INTERACTIVE);
+    }
+
+    public ScheduledTransport(HttpTransport transport, RequestScheduler scheduler, RequestScheduler.Lane defaultLane) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.defaultLane = defaultLane;
+    }
+
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    @Override
+    public TransportResponse get(String url, Map<String, ?> queryParams, Map<String, String> header) throws IOException {
+        RequestScheduler.Lane lane = acquire();
+        try {
+            return new ScheduledResponse(transport.get(url, queryParams, header), lane);
+        } catch (IOException e) {
+            scheduler.release(lane);
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse post(String url, Map<String, String> header, Map<String, ?> params,
+                                  RicohAPIRequest.ParamType paramType) throws IOException {
+        RequestScheduler.Lane lane = acquire();
+        try {
+            return new ScheduledResponse(transport.post(url, header, params, paramType), lane);
+        } catch (IOException e) {
+            scheduler.release(lane);
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse put(String url, Map<String, String> header, String value) throws IOException {
+        RequestScheduler.Lane lane = acquire();
+        try {
+            return new ScheduledResponse(transport.put(url, header, value), lane);
+        } catch (IOException e) {
+            scheduler.release(lane);
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse delete(String url, Map<String, String> header) throws IOException {
+        RequestScheduler.Lane lane = acquire();
+        try {
+            return new ScheduledResponse(transport.delete(url, header), lane);
+        } catch (IOException e) {
+            scheduler.release(lane);
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse upload(String url, Map<String, String> header, InputStream inputStream,
+                                    long contentLength) throws IOException {
+        RequestScheduler.Lane lane = acquire();
+        try {
+            return new ScheduledResponse(transport.upload(url, header, inputStream, contentLength), lane);
+        } catch (IOException e) {
+            scheduler.release(lane);
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse download(String url, Map<String, String> header) throws IOException {
+        RequestScheduler.Lane lane = acquire();
+        try {
+            return new ScheduledResponse(transport.download(url, header), lane);
+        } catch (IOException e) {
+            scheduler.release(lane);
+            throw e;
+        }
+    }
+
+    private RequestScheduler.Lane acquire() throws InterruptedIOException {
+        OperationTrace<?> trace = OperationTrace.current();
+        RequestScheduler.Lane lane = trace == null || trace.getLane() == null ? defaultLane : trace.getLane();
+        try {
+            scheduler.acquire(lane);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the request scheduler");
+        }
+        return lane;
+    }
+
+    /**
+     * Gives the lane back to the scheduler when the response or its stream is closed.
+     */
+    private class ScheduledResponse implements TransportResponse {
+        private final TransportResponse response;
+        private final RequestScheduler.Lane lane;
+        private boolean released = false;
+
+        ScheduledResponse(TransportResponse response, RequestScheduler.Lane lane) {
+            this.response = response;
+            this.lane = lane;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return response.getResponseCode();
+        }
+
+        @Override
+        public boolean isSucceeded() throws IOException {
+            return response.isSucceeded();
+        }
+
+        @Override
+        public String getResponseBody() throws IOException {
+            return response.getResponseBody();
+        }
+
+        @Override
+        public String getErrorBody() throws IOException {
+            return response.getErrorBody();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(response.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return response.getHeaderField(name);
+        }
+
+        @Override
+        public void close() {
+            try {
+                response.close();
+            } finally {
+                release();
+            }
+        }
+
+        private synchronized void release() {
+            if (released) return;
+            released = true;
+            scheduler.release(lane);
+        }
+    }
+}
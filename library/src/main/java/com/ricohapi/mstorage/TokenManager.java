@@ -0,0 +1,166 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.AuthClient;
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.auth.Scope;
+import com.ricohapi.auth.entity.AuthResult;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the access token of a MediaStorage and renews it with AuthClient.session.
+ * Once connected, the token is renewed in the background every refreshIntervalMillis,
+ * before it expires; AuthResult does not tell the lifetime of the token, so the interval
+ * should be shorter than the one the server grants (an hour for Ricoh API tokens).
+ * Requests read the token without locking. A request rejected with 401 renews it through
+ * refresh, which lets concurrent callers share a single session.
+ */
+public class TokenManager {
+    public static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 50 * 60 * 1000;
+
+    private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TokenManager");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AuthClient authClient;
+    private final long refreshIntervalMillis;
+    private final Object refreshLock = new Object();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private volatile String accessToken;
+    private ScheduledFuture<?> scheduled;
+
+    public TokenManager(AuthClient authClient) {
+        this(authClient, DEFAULT_REFRESH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param refreshIntervalMillis the interval of background renewal, or 0 to renew only after a 401
+     */
+    public TokenManager(AuthClient authClient, long refreshIntervalMillis) {
+        if (refreshIntervalMillis < 0) {
+            throw new IllegalArgumentException("invalid refreshIntervalMillis: " + refreshIntervalMillis);
+        }
+        this.authClient = authClient;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * @return the current access token, or null before connect has succeeded
+     */
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public long getRefreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    /**
+     * @return the number of times the token has been renewed after connect
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * Gets a token with AuthClient.session and starts renewing it in the background.
+     */
+    public void connect(CompletionHandler<AuthResult> handler) {
+        AuthResult result;
+        try {
+            synchronized (refreshLock) {
+                result = session();
+            }
+        } catch (Exception e) {
+            handler.onThrowable(e);
+            return;
+        }
+        schedule();
+        handler.onCompleted(result);
+    }
+
+    /**
+     * Stops renewing the token in the background. The token stays usable until it expires.
+     */
+    public synchronized void stop() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    /**
+     * Renews the token unless it has already been renewed since staleToken was read.
+     * Callers that arrive while a renewal is running wait for it and share its result.
+     * @return the current token, or null if it could not be renewed
+     */
+    String refresh(String staleToken) {
+        synchronized (refreshLock) {
+            String current = accessToken;
+            if (current != null && !current.equals(staleToken)) {
+                return current;
+            }
+            try {
+                session();
+                refreshCount.incrementAndGet();
+                return accessToken;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    private AuthResult session() throws Exception {
+        final AuthResult[] result = new AuthResult[1];
+        final Exception[] error = new Exception[1];
+        authClient.session(Scope.MSTORAGE, new CompletionHandler<AuthResult>() {
+            @Override
+            public void onCompleted(AuthResult authResult) {
+                result[0] = authResult;
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+                error[0] = t instanceof Exception ? (Exception) t : new Exception(t);
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        accessToken = result[0].getAccessToken();
+        return result[0];
+    }
+
+    private synchronized void schedule() {
+        if (refreshIntervalMillis == 0 || scheduled != null) return;
+        // the task only holds this weakly, so an unused TokenManager can still be collected
+        final WeakReference<TokenManager> reference = new WeakReference<>(this);
+        scheduled = REFRESHER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                TokenManager tokenManager = reference.get();
+                if (tokenManager == null) {
+                    // an exception cancels the following runs
+                    throw new IllegalStateException("TokenManager has been collected");
+                }
+                tokenManager.refresh(tokenManager.accessToken);
+            }
+        }, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+}
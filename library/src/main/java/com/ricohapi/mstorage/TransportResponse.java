@@ -0,0 +1,31 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface TransportResponse extends Closeable {
+
+    int getResponseCode() throws IOException;
+
+    boolean isSucceeded() throws IOException;
+
+    String getResponseBody() throws IOException;
+
+    String getErrorBody() throws IOException;
+
+    /**
+     * Returns the response stream. Closing it also closes this response.
+     */
+    InputStream getInputStream() throws IOException;
+
+    String getHeaderField(String name);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,98 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * The default HttpTransport, built on RicohAPIRequest and java.net.HttpURLConnection.
+ */
+public class URLConnectionTransport implements HttpTransport {
+    private final ConnectionPool connectionPool;
+
+    public URLConnectionTransport() {
+        this(new ConnectionPool());
+    }
+
+    public URLConnectionTransport(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    @Override
+    public TransportResponse get(String url, Map<String, ?> queryParams, Map<String, String> header) throws IOException {
+        RicohAPIRequest request = queryParams == null || queryParams.isEmpty()
+                ? new RicohAPIRequest(url, connectionPool)
+                : new RicohAPIRequest(url, queryParams, connectionPool);
+        try {
+            request.get(header);
+            return request;
+        } catch (IOException e) {
+            request.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse post(String url, Map<String, String> header, Map<String, ?> params,
+                                  RicohAPIRequest.ParamType paramType) throws IOException {
+        RicohAPIRequest request = new RicohAPIRequest(url, connectionPool);
+        try {
+            request.post(header, params, paramType);
+            return request;
+        } catch (IOException e) {
+            request.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse put(String url, Map<String, String> header, String value) throws IOException {
+        RicohAPIRequest request = new RicohAPIRequest(url, connectionPool);
+        try {
+            request.put(header, value);
+            return request;
+        } catch (IOException e) {
+            request.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse delete(String url, Map<String, String> header) throws IOException {
+        RicohAPIRequest request = new RicohAPIRequest(url, connectionPool);
+        try {
+            request.delete(header);
+            return request;
+        } catch (IOException e) {
+            request.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse upload(String url, Map<String, String> header, InputStream inputStream,
+                                    long contentLength) throws IOException {
+        RicohAPIRequest request = new RicohAPIRequest(url, connectionPool);
+        try {
+            request.upload(header, inputStream, contentLength);
+            return request;
+        } catch (IOException e) {
+            request.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public TransportResponse download(String url, Map<String, String> header) throws IOException {
+        return get(url, null, RicohAPIRequest.identity(header));
+    }
+}
@@ -0,0 +1,48 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage.entity;
+
+public class BatchProgress {
+    private long succeededItems;
+    private long failedItems;
+    private long bytes;
+    private long elapsedMillis;
+
+    public BatchProgress(long succeededItems, long failedItems, long bytes, long elapsedMillis) {
+        this.succeededItems = succeededItems;
+        this.failedItems = failedItems;
+        this.bytes = bytes;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long getSucceededItems() {
+        return succeededItems;
+    }
+
+    public long getFailedItems() {
+        return failedItems;
+    }
+
+    public long getCompletedItems() {
+        return succeededItems + failedItems;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getItemsPerSecond() {
+        return elapsedMillis > 0 ? getCompletedItems() * 1000.0 / elapsedMillis : 0;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedMillis > 0 ? bytes * 1000.0 / elapsedMillis : 0;
+    }
+}
@@ -0,0 +1,271 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage.entity;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A metadata map kept in two sorted arrays instead of a hash table.
+ * Keys are shared across all maps through a bounded dictionary, since exif and gpano keys repeat
+ * on every media. A value whose text is exactly the decimal form of a long or a double is held as
+ * that number and turned back into the same text when read.
+ * Like HashMap, it is not safe for concurrent modification.
+ */
+public class CompactMetaMap extends AbstractMap<String, String> {
+    static final int MAX_SHARED_KEYS = 4096;
+    private static final int MAX_NUMBER_LENGTH = 18;
+
+    private static final ConcurrentHashMap<String, String> SHARED_KEYS = new ConcurrentHashMap<>();
+    private static final AtomicInteger SHARED_KEY_COUNT = new AtomicInteger();
+    private static final String[] NO_KEYS = new String[0];
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private String[] keys = NO_KEYS;
+    // a String, Long or Double, or null
+    private Object[] values = NO_VALUES;
+    private int modCount;
+
+    public CompactMetaMap() {
+    }
+
+    public CompactMetaMap(Map<String, String> source) {
+        int size = source.size();
+        String[] sortedKeys = source.keySet().toArray(new String[size]);
+        Arrays.sort(sortedKeys);
+        keys = size == 0 ? NO_KEYS : new String[size];
+        values = size == 0 ? NO_VALUES : new Object[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = sharedKey(sortedKeys[i]);
+            values[i] = encode(source.get(sortedKeys[i]));
+        }
+    }
+
+    /**
+     * @return map itself when it is already compact or null, otherwise a compact copy
+     */
+    public static CompactMetaMap compact(Map<String, String> map) {
+        if (map == null || map instanceof CompactMetaMap) {
+            return (CompactMetaMap) map;
+        }
+        return new CompactMetaMap(map);
+    }
+
+    /**
+     * Returns the value of key as a number: a Long for an integer, a Double for a decimal or
+     * an exif rational such as "1/100".
+     * @return the number, or null when the key is absent or its value is not numeric
+     */
+    public Number getNumber(String key) {
+        int index = indexOf(key);
+        if (index < 0) return null;
+        Object value = values[index];
+        return value instanceof Number ? (Number) value : parseNumber((String) value);
+    }
+
+    /**
+     * Parses a metadata value as getNumber does.
+     * @return the number, or null when value is null or not numeric
+     */
+    public static Number parseNumber(String value) {
+        if (value == null) return null;
+        try {
+            int slash = value.indexOf('/');
+            if (slash > 0) {
+                double denominator = Double.parseDouble(value.substring(slash + 1));
+                return denominator == 0 ? null : Double.parseDouble(value.substring(0, slash)) / denominator;
+            }
+            if (value.indexOf('.') < 0 && value.indexOf('e') < 0 && value.indexOf('E') < 0) {
+                return Long.parseLong(value);
+            }
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) return null;
+        int index = indexOf((String) key);
+        return index < 0 ? null : decode(values[index]);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        int index = indexOf(key);
+        if (index >= 0) {
+            String old = decode(values[index]);
+            values[index] = encode(value);
+            return old;
+        }
+        int insertion = -index - 1;
+        String[] newKeys = new String[keys.length + 1];
+        Object[] newValues = new Object[values.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, insertion);
+        System.arraycopy(values, 0, newValues, 0, insertion);
+        newKeys[insertion] = sharedKey(key);
+        newValues[insertion] = encode(value);
+        System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+        System.arraycopy(values, insertion, newValues, insertion + 1, values.length - insertion);
+        keys = newKeys;
+        values = newValues;
+        modCount++;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (!(key instanceof String)) return null;
+        int index = indexOf((String) key);
+        if (index < 0) return null;
+        String old = decode(values[index]);
+        removeAt(index);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        keys = NO_KEYS;
+        values = NO_VALUES;
+        modCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public int size() {
+                return keys.length;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+        private int next;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < keys.length;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (expectedModCount != modCount) throw new ConcurrentModificationException();
+            if (next >= keys.length) throw new NoSuchElementException();
+            last = next++;
+            final String key = keys[last];
+            return new AbstractMap.SimpleEntry<String, String>(key, decode(values[last])) {
+                @Override
+                public String setValue(String value) {
+                    super.setValue(value);
+                    return put(key, value);
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) throw new IllegalStateException();
+            if (expectedModCount != modCount) throw new ConcurrentModificationException();
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private void removeAt(int index) {
+        if (keys.length == 1) {
+            clear();
+            return;
+        }
+        String[] newKeys = new String[keys.length - 1];
+        Object[] newValues = new Object[values.length - 1];
+        System.arraycopy(keys, 0, newKeys, 0, index);
+        System.arraycopy(values, 0, newValues, 0, index);
+        System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+        System.arraycopy(values, index + 1, newValues, index, values.length - index - 1);
+        keys = newKeys;
+        values = newValues;
+        modCount++;
+    }
+
+    private int indexOf(String key) {
+        return Arrays.binarySearch(keys, key);
+    }
+
+    /**
+     * @return the instance of key shared by every map, or key itself once the dictionary is full
+     */
+    static String sharedKey(String key) {
+        String shared = SHARED_KEYS.get(key);
+        if (shared != null) return shared;
+        if (SHARED_KEY_COUNT.get() >= MAX_SHARED_KEYS) return key;
+        shared = SHARED_KEYS.putIfAbsent(key, key);
+        if (shared != null) return shared;
+        SHARED_KEY_COUNT.incrementAndGet();
+        return key;
+    }
+
+    static Object encode(String value) {
+        if (value == null || value.isEmpty() || value.length() > MAX_NUMBER_LENGTH || !isNumeric(value)) {
+            return value;
+        }
+        try {
+            if (value.indexOf('.') < 0) {
+                Long number = Long.valueOf(value);
+                return number.toString().equals(value) ? number : value;
+            }
+            Double number = Double.valueOf(value);
+            return number.toString().equals(value) ? number : value;
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    private static boolean isNumeric(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && c != '.' && !(c == '-' && i == 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(Object value) {
+        return value == null ? null : value.toString();
+    }
+}
@@ -0,0 +1,34 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage.entity;
+
+public class ItemResult<K, V> {
+    private K item;
+    private V value;
+    private Throwable throwable;
+
+    public ItemResult(K item, V value, Throwable throwable) {
+        this.item = item;
+        this.value = value;
+        this.throwable = throwable;
+    }
+
+    public K getItem() {
+        return item;
+    }
+
+    public V getValue() {
+        return value;
+    }
+
+    public Throwable getThrowable() {
+        return throwable;
+    }
+
+    public boolean isSucceeded() {
+        return throwable == null;
+    }
+}
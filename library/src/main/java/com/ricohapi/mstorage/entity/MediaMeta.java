@@ -37,4 +37,18 @@ public class MediaMeta {
     }
 
     public void setUserMeta(Map<String, String> user) { this.userMeta = user; }
+
+    /**
+     * @return the exif value of key as a Long or Double, see CompactMetaMap.parseNumber
+     */
+    public Number getExifNumber(String key) {
+        return exif == null ? null : CompactMetaMap.parseNumber(exif.get(key));
+    }
+
+    /**
+     * @return the gpano value of key as a Long or Double, see CompactMetaMap.parseNumber
+     */
+    public Number getGpanoNumber(String key) {
+        return gpano == null ? null : CompactMetaMap.parseNumber(gpano.get(key));
+    }
 }
@@ -0,0 +1,94 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage.entity;
+
+import java.util.Map;
+
+/**
+ * The information and metadata of a media, as kept by a MediaMirror.
+ * The metadata sections are held in CompactMetaMaps.
+ */
+public class MediaRecord {
+    private String id;
+    private String contentType;
+    private int bytes;
+    private String createdAt;
+    private Map<String, String> exif = new CompactMetaMap();
+    private Map<String, String> gpano = new CompactMetaMap();
+    private Map<String, String> user = new CompactMetaMap();
+
+    public MediaRecord() {
+    }
+
+    public MediaRecord(MediaInfo info, MediaMeta meta) {
+        this.id = info.getId();
+        this.contentType = info.getContentType();
+        this.bytes = info.getBytes();
+        this.createdAt = info.getCreatedAt();
+        if (meta != null) {
+            setExif(meta.getExif());
+            setGpano(meta.getGpano());
+            // user metadata is changed in place, so it must not be shared with meta
+            setUser(meta.getUserMeta() == null ? null : new CompactMetaMap(meta.getUserMeta()));
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public int getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(int bytes) {
+        this.bytes = bytes;
+    }
+
+    public String getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(String createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Map<String, String> getExif() {
+        return exif;
+    }
+
+    public void setExif(Map<String, String> exif) {
+        this.exif = exif == null ? new CompactMetaMap() : CompactMetaMap.compact(exif);
+    }
+
+    public Map<String, String> getGpano() {
+        return gpano;
+    }
+
+    public void setGpano(Map<String, String> gpano) {
+        this.gpano = gpano == null ? new CompactMetaMap() : CompactMetaMap.compact(gpano);
+    }
+
+    public Map<String, String> getUser() {
+        return user;
+    }
+
+    public void setUser(Map<String, String> user) {
+        this.user = user == null ? new CompactMetaMap() : CompactMetaMap.compact(user);
+    }
+}
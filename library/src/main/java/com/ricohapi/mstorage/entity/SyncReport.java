@@ -0,0 +1,63 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage.entity;
+
+import java.util.Map;
+
+/**
+ * The outcome of one DirectorySync run.
+ */
+public class SyncReport {
+    private long scannedFiles;
+    private long unchangedFiles;
+    private long uploadedFiles;
+    private long deletedMedia;
+    private long uploadedBytes;
+    private long elapsedMillis;
+    private Map<String, Throwable> failures;
+
+    public SyncReport(long scannedFiles, long unchangedFiles, long uploadedFiles, long deletedMedia,
+                      long uploadedBytes, long elapsedMillis, Map<String, Throwable> failures) {
+        this.scannedFiles = scannedFiles;
+        this.unchangedFiles = unchangedFiles;
+        this.uploadedFiles = uploadedFiles;
+        this.deletedMedia = deletedMedia;
+        this.uploadedBytes = uploadedBytes;
+        this.elapsedMillis = elapsedMillis;
+        this.failures = failures;
+    }
+
+    public long getScannedFiles() {
+        return scannedFiles;
+    }
+
+    public long getUnchangedFiles() {
+        return unchangedFiles;
+    }
+
+    public long getUploadedFiles() {
+        return uploadedFiles;
+    }
+
+    public long getDeletedMedia() {
+        return deletedMedia;
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the error of each path, relative to the synchronized directory, that could not be synchronized
+     */
+    public Map<String, Throwable> getFailures() {
+        return failures;
+    }
+}
@@ -5,8 +5,13 @@
 
 package com.ricohapi.mstorage.response;
 
+import com.ricohapi.mstorage.entity.CompactMetaMap;
+
 import java.util.Map;
 
+/**
+ * The metadata of a media. Each section is held in a CompactMetaMap.
+ */
 public class RespMeta {
     private Map<String, String> exif;
     private Map<String, String> gpano;
@@ -16,17 +21,17 @@ public class RespMeta {
         return exif;
     }
 
-    public void setExif(Map<String, String> exif) { this.exif = exif; }
+    public void setExif(Map<String, String> exif) { this.exif = CompactMetaMap.compact(exif); }
 
     public Map<String, String> getGpano() {
         return gpano;
     }
 
-    public void setGpano(Map<String, String> gpano) { this.gpano = gpano; }
+    public void setGpano(Map<String, String> gpano) { this.gpano = CompactMetaMap.compact(gpano); }
 
     public Map<String, String> getUser() {
         return user;
     }
 
-    public void setUser(Map<String, String> user) { this.user = user; }
+    public void setUser(Map<String, String> user) { this.user = CompactMetaMap.compact(user); }
 }
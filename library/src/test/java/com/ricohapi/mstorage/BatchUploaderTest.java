@@ -0,0 +1,158 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.mstorage.entity.BatchProgress;
+import com.ricohapi.mstorage.entity.ItemResult;
+import com.ricohapi.mstorage.entity.MediaInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchUploaderTest {
+    private static final int FILE_COUNT = 24;
+    private static final int PARALLELISM = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger mediaCount = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.handle(StubServer.MEDIA_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int running = inFlight.incrementAndGet();
+                try {
+                    maxInFlight.set(Math.max(maxInFlight.get(), running));
+                    String content = read(exchange.getRequestBody());
+                    Thread.sleep(20);
+                    if (!("Bearer " + StubServer.TOKEN).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                        StubServer.respond(exchange, 401, "{}");
+                    } else if (content.startsWith("reject")) {
+                        StubServer.respond(exchange, 400, "{\"error\":\"rejected\"}");
+                    } else {
+                        StubServer.respond(exchange, 201, "{\"id\":\"media" + mediaCount.incrementAndGet()
+                                + "\",\"content_type\":\"image/jpeg\",\"bytes\":" + content.length() + "}");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void uploadsConcurrentlyWithOneResultPerFile() throws IOException {
+        List<File> files = new ArrayList<>();
+        long expectedBytes = 0;
+        for (int i = 0; i < FILE_COUNT; i++) {
+            String content = (i % 8 == 7 ? "reject" : "photo") + i;
+            files.add(write("file" + i + ".jpg", content));
+            if (i % 8 != 7) {
+                expectedBytes += content.length();
+            }
+        }
+
+        BatchUploader uploader = new BatchUploader(server.mediaStorage(new URLConnectionTransport()), PARALLELISM, 2);
+        final AtomicReference<BatchProgress> lastProgress = new AtomicReference<>();
+        uploader.setListener(new BatchUploader.Listener() {
+            @Override
+            public void onProgress(ItemResult<File, MediaInfo> result, BatchProgress progress) {
+                lastProgress.set(progress);
+            }
+        });
+        final AtomicReference<List<ItemResult<File, MediaInfo>>> results = new AtomicReference<>();
+        uploader.upload(files, new CompletionHandler<List<ItemResult<File, MediaInfo>>>() {
+            @Override
+            public void onCompleted(List<ItemResult<File, MediaInfo>> result) {
+                results.set(result);
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+                throw new AssertionError(t);
+            }
+        });
+
+        assertEquals(FILE_COUNT, results.get().size());
+        Set<File> seen = new HashSet<>();
+        Set<String> mediaIds = new HashSet<>();
+        for (ItemResult<File, MediaInfo> result : results.get()) {
+            seen.add(result.getItem());
+            if (result.getItem().getName().matches("file(7|15|23)\\.jpg")) {
+                assertFalse(result.isSucceeded());
+                assertNull(result.getValue());
+            } else {
+                assertTrue(result.isSucceeded());
+                mediaIds.add(result.getValue().getId());
+            }
+        }
+        assertEquals(FILE_COUNT, seen.size());
+        assertEquals(FILE_COUNT - 3, mediaIds.size());
+
+        assertEquals(FILE_COUNT - 3, lastProgress.get().getSucceededItems());
+        assertEquals(3, lastProgress.get().getFailedItems());
+        assertEquals(expectedBytes, lastProgress.get().getBytes());
+        assertTrue("max in flight " + maxInFlight.get(), maxInFlight.get() > 1 && maxInFlight.get() <= PARALLELISM);
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
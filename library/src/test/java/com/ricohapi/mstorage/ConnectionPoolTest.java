@@ -0,0 +1,103 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+    private StubServer server;
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger hits = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.handle("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                blocked.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                StubServer.respond(exchange, 200, "{}");
+            }
+        });
+        server.handle("/counted", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                hits.incrementAndGet();
+                StubServer.respond(exchange, 200, "{}");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        server.close();
+    }
+
+    @Test
+    public void requestTimedOutWaitingForAConnectionIsNeverSent() throws Exception {
+        ConnectionPool pool = new ConnectionPool(200, 10 * 1000, 1);
+        final URLConnectionTransport transport = new URLConnectionTransport(pool);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TransportResponse response = transport.get(server.url("/slow"), null, new HashMap<String, String>());
+                    try {
+                        response.getResponseCode();
+                    } finally {
+                        response.close();
+                    }
+                } catch (IOException e) {
+                    // reported by the assertions below
+                }
+            }
+        });
+        holder.start();
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        try {
+            transport.delete(server.url("/counted"), new HashMap<String, String>());
+            fail("the pool had no connection to give");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+
+        release.countDown();
+        holder.join(5000);
+        assertEquals(0, pool.getActiveConnections("127.0.0.1"));
+        TransportResponse response = transport.get(server.url("/counted"), null, new HashMap<String, String>());
+        try {
+            assertEquals(200, response.getResponseCode());
+        } finally {
+            response.close();
+        }
+        assertEquals(1, hits.get());
+        assertEquals(2, pool.getRequestCount());
+    }
+}
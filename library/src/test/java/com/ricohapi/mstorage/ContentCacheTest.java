@@ -0,0 +1,189 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.auth.RicohAPIException;
+import com.ricohapi.mstorage.entity.MediaContent;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ContentCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(folder.getRoot(), "cache");
+    }
+
+    @Test
+    public void putContentIsServedAsAHit() throws IOException {
+        ContentCache cache = new ContentCache(dir, 100);
+        assertNull(cache.get("a"));
+
+        assertEquals("alpha", read(put(cache, "a", "alpha")));
+        assertEquals("alpha", read(cache.get("a")));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(5, cache.getUsedBytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException {
+        ContentCache cache = new ContentCache(dir, 10);
+        put(cache, "a", "aaaa").getInputStream().close();
+        put(cache, "b", "bbbb").getInputStream().close();
+        cache.get("a").getInputStream().close();
+        put(cache, "c", "cccc").getInputStream().close();
+
+        assertNull(cache.get("b"));
+        assertEquals("aaaa", read(cache.get("a")));
+        assertEquals("cccc", read(cache.get("c")));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(8, cache.getUsedBytes());
+        assertFalse(new File(dir, "b").exists());
+    }
+
+    @Test
+    public void contentLargerThanTheCacheIsNotKept() throws IOException {
+        ContentCache cache = new ContentCache(dir, 4);
+
+        assertEquals("too large", read(put(cache, "a", "too large")));
+        assertEquals(0, cache.size());
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void entriesSurviveARestart() throws IOException {
+        ContentCache cache = new ContentCache(dir, 100);
+        put(cache, "a", "alpha").getInputStream().close();
+        put(cache, "photo/1", "slash").getInputStream().close();
+
+        ContentCache reopened = new ContentCache(dir, 100);
+        assertEquals(2, reopened.size());
+        assertEquals(10, reopened.getUsedBytes());
+        assertEquals("alpha", read(reopened.get("a")));
+        assertEquals("slash", read(reopened.get("photo/1")));
+    }
+
+    @Test
+    public void contentFetchedAcrossAnInvalidationIsNotKept() throws IOException {
+        ContentCache cache = new ContentCache(dir, 100);
+        long generation = cache.generation("a");
+        cache.invalidate("a");
+
+        assertEquals("deleted", read(cache.put("a", stream("deleted"), generation)));
+        assertNull(cache.get("a"));
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void deleteInvalidatesTheContent() throws IOException {
+        final AtomicInteger downloads = new AtomicInteger();
+        StubServer server = new StubServer();
+        try {
+            server.handle(StubServer.MEDIA_PATH, new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    StubServer.drain(exchange.getRequestBody());
+                    if ("DELETE".equals(exchange.getRequestMethod())) {
+                        StubServer.respond(exchange, 204, "");
+                    } else if (downloads.getAndIncrement() == 0) {
+                        StubServer.respond(exchange, 200, "content");
+                    } else {
+                        StubServer.respond(exchange, 404, "{}");
+                    }
+                }
+            });
+            MediaStorage mediaStorage = server.mediaStorage(new URLConnectionTransport());
+            mediaStorage.setContentCache(new ContentCache(dir, 100));
+
+            assertEquals("content", read((MediaContent) download(mediaStorage)));
+            assertEquals("content", read((MediaContent) download(mediaStorage)));
+            assertEquals(1, downloads.get());
+
+            delete(mediaStorage);
+            assertEquals(0, mediaStorage.getContentCache().size());
+            assertEquals(404, ((RicohAPIException) download(mediaStorage)).getStatusCode());
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * @return the content of media1, or the throwable of the download
+     */
+    private static Object download(MediaStorage mediaStorage) {
+        Capture<MediaContent> capture = new Capture<>();
+        mediaStorage.download("media1", capture);
+        return capture.result.get();
+    }
+
+    private static void delete(MediaStorage mediaStorage) {
+        Capture<Object> capture = new Capture<>();
+        mediaStorage.delete("media1", capture);
+        if (capture.result.get() instanceof Throwable) {
+            throw new AssertionError(capture.result.get());
+        }
+    }
+
+    private static MediaContent put(ContentCache cache, String mediaId, String content) throws IOException {
+        return cache.put(mediaId, stream(content), cache.generation(mediaId));
+    }
+
+    private static InputStream stream(String content) throws IOException {
+        return new ByteArrayInputStream(content.getBytes("UTF-8"));
+    }
+
+    private static String read(MediaContent content) throws IOException {
+        InputStream inputStream = content.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static class Capture<T> implements CompletionHandler<T> {
+        final AtomicReference<Object> result = new AtomicReference<>();
+
+        @Override
+        public void onCompleted(T value) {
+            result.set(value);
+        }
+
+        @Override
+        public void onThrowable(Throwable t) {
+            result.set(t);
+        }
+    }
+}
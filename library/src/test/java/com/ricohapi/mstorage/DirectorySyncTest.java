@@ -0,0 +1,222 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.mstorage.entity.SyncReport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs DirectorySync against a stub that gives each uploaded media its content as id.
+ */
+public class DirectorySyncTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private File root;
+    private File manifest;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean rejectUploads;
+    private volatile boolean rejectDeletes;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("photos");
+        manifest = new File(folder.getRoot(), "manifest.tsv");
+        server = new StubServer();
+        server.handle(StubServer.MEDIA_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String content = read(exchange.getRequestBody());
+                String path = exchange.getRequestURI().getPath().substring(StubServer.MEDIA_PATH.length());
+                if ("DELETE".equals(exchange.getRequestMethod())) {
+                    requests.add("DELETE " + path);
+                    StubServer.respond(exchange, rejectDeletes ? 500 : 204, rejectDeletes ? "{}" : "");
+                } else {
+                    requests.add("UPLOAD " + content);
+                    if (rejectUploads && content.startsWith("reject")) {
+                        StubServer.respond(exchange, 400, "{}");
+                    } else {
+                        StubServer.respond(exchange, 201, "{\"id\":\"" + content
+                                + "\",\"content_type\":\"image/jpeg\",\"bytes\":" + content.length() + "}");
+                    }
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void unchangedRerunSendsNoRequest() throws IOException {
+        write("a.jpg", "alpha");
+        write("trip/b.jpg", "bravo");
+        write("trip/day2/c.jpg", "charlie");
+
+        SyncReport first = sync(false);
+        assertEquals(3, first.getUploadedFiles());
+        assertEquals(3, requests.size());
+
+        requests.clear();
+        SyncReport second = sync(false);
+        assertEquals(Collections.<String>emptyList(), requests);
+        assertEquals(3, second.getScannedFiles());
+        assertEquals(3, second.getUnchangedFiles());
+        assertEquals(0, second.getUploadedFiles());
+    }
+
+    @Test
+    public void touchedFileIsNotUploadedAgain() throws IOException {
+        File file = write("a.jpg", "alpha");
+        sync(false);
+        assertTrue(file.setLastModified(file.lastModified() - 60 * 1000));
+
+        requests.clear();
+        SyncReport touched = sync(false);
+        assertEquals(Collections.<String>emptyList(), requests);
+        assertEquals(1, touched.getUnchangedFiles());
+        assertEquals(0, touched.getUploadedFiles());
+
+        // the new modification time was recorded
+        assertTrue(manifest().contains("\t" + file.lastModified() + "\t"));
+    }
+
+    @Test
+    public void removedFileHasItsMediaDeleted() throws IOException {
+        write("a.jpg", "alpha");
+        File removed = write("b.jpg", "bravo");
+        sync(true);
+        assertTrue(removed.delete());
+
+        requests.clear();
+        SyncReport report = sync(true);
+        assertEquals(Collections.singletonList("DELETE /bravo"), requests);
+        assertEquals(1, report.getDeletedMedia());
+        assertFalse(manifest().contains("b.jpg"));
+    }
+
+    @Test
+    public void partialFailureKeepsTheUploadedFiles() throws IOException {
+        write("a.jpg", "alpha");
+        write("b.jpg", "reject");
+        write("c.jpg", "charlie");
+        rejectUploads = true;
+
+        SyncReport failed = sync(false);
+        assertEquals(2, failed.getUploadedFiles());
+        assertEquals(Collections.singleton("b.jpg"), failed.getFailures().keySet());
+
+        rejectUploads = false;
+        requests.clear();
+        SyncReport retried = sync(false);
+        assertEquals(Collections.singletonList("UPLOAD reject"), requests);
+        assertEquals(2, retried.getUnchangedFiles());
+        assertTrue(retried.getFailures().isEmpty());
+    }
+
+    @Test
+    public void failedDeleteOfAReplacedMediaIsRetried() throws IOException {
+        File file = write("a.jpg", "alpha");
+        sync(true);
+        write("a.jpg", "amber");
+        assertTrue(file.setLastModified(file.lastModified() + 60 * 1000));
+        rejectDeletes = true;
+
+        requests.clear();
+        SyncReport replaced = sync(true);
+        assertEquals(Arrays.asList("UPLOAD amber", "DELETE /alpha"), requests);
+        assertEquals(1, replaced.getUploadedFiles());
+        assertTrue(replaced.getFailures().isEmpty());
+        assertTrue(manifest().contains("\tamber"));
+
+        rejectDeletes = false;
+        requests.clear();
+        SyncReport retried = sync(true);
+        assertEquals(Collections.singletonList("DELETE /alpha"), requests);
+        assertEquals(1, retried.getDeletedMedia());
+        assertEquals(1, retried.getUnchangedFiles());
+
+        requests.clear();
+        sync(true);
+        assertEquals(Collections.<String>emptyList(), requests);
+    }
+
+    private SyncReport sync(boolean deleteRemoved) {
+        DirectorySync directorySync = new DirectorySync(server.mediaStorage(new URLConnectionTransport()), root, manifest, 2);
+        directorySync.setDeleteRemoved(deleteRemoved);
+        final AtomicReference<SyncReport> report = new AtomicReference<>();
+        directorySync.sync(new CompletionHandler<SyncReport>() {
+            @Override
+            public void onCompleted(SyncReport result) {
+                report.set(result);
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+                throw new AssertionError(t);
+            }
+        });
+        return report.get();
+    }
+
+    private File write(String path, String content) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private String manifest() throws IOException {
+        InputStream in = new FileInputStream(manifest);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
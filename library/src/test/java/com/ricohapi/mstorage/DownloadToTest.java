@@ -0,0 +1,200 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs downloadTo against a stub that honors Range and If-Range.
+ */
+public class DownloadToTest {
+    private static final String MEDIA_ID = "media1";
+    private static final int LENGTH = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private final byte[] content = new byte[LENGTH];
+    private volatile String etag = "\"v1\"";
+    // the number of bytes to send before ending a full response early, or -1
+    private final AtomicInteger truncateAt = new AtomicInteger(-1);
+    // "<Range> <If-Range>" of each content request
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(content);
+        server = new StubServer();
+        server.handle(StubServer.MEDIA_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/content")) {
+                    content(exchange);
+                } else {
+                    StubServer.respond(exchange, 200, "{\"id\":\"" + MEDIA_ID
+                            + "\",\"content_type\":\"image/jpeg\",\"bytes\":" + LENGTH + "}");
+                }
+            }
+        });
+    }
+
+    private void content(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        requests.add(range + " " + ifRange);
+        exchange.getResponseHeaders().set("ETag", etag);
+        int start = 0;
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (LENGTH - 1) + "/" + LENGTH);
+        }
+        int end = LENGTH;
+        int cut = truncateAt.getAndSet(-1);
+        if (cut >= 0) {
+            // a chunked body that ends cleanly before the content does
+            exchange.sendResponseHeaders(start > 0 ? 206 : 200, 0);
+            end = cut;
+        } else {
+            exchange.sendResponseHeaders(start > 0 ? 206 : 200, LENGTH - start);
+        }
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(content, start, end - start);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void existingTargetOfTheSameLengthIsReplaced() throws IOException {
+        File target = folder.newFile("photo.jpg");
+        write(target, new byte[LENGTH]);
+
+        assertEquals(target, download(target));
+        assertArrayEquals(content, bytes(target));
+        assertEquals(Collections.singletonList("null null"), requests);
+    }
+
+    @Test
+    public void partialDownloadOfTheSameVersionIsResumed() throws IOException {
+        File target = new File(folder.getRoot(), "photo.jpg");
+        writePart(target, MEDIA_ID, "\"v1\"", 4000);
+
+        download(target);
+        assertArrayEquals(content, bytes(target));
+        assertEquals(Collections.singletonList("bytes=4000- \"v1\""), requests);
+        assertFalse(new File(target.getPath() + ".part").exists());
+        assertFalse(new File(target.getPath() + ".part.state").exists());
+    }
+
+    @Test
+    public void partialDownloadOfAnotherVersionIsDownloadedWhole() throws IOException {
+        File target = new File(folder.getRoot(), "photo.jpg");
+        writePart(target, MEDIA_ID, "\"v0\"", 4000);
+
+        download(target);
+        assertArrayEquals(content, bytes(target));
+        assertEquals(Collections.singletonList("bytes=4000- \"v0\""), requests);
+    }
+
+    @Test
+    public void partialDownloadOfAnotherMediaIsDiscarded() throws IOException {
+        File target = new File(folder.getRoot(), "photo.jpg");
+        writePart(target, "media2", "\"v1\"", 4000);
+
+        download(target);
+        assertArrayEquals(content, bytes(target));
+        assertEquals(Collections.singletonList("null null"), requests);
+    }
+
+    @Test
+    public void bodyEndingEarlyIsResumed() throws IOException {
+        File target = new File(folder.getRoot(), "photo.jpg");
+        truncateAt.set(3000);
+
+        download(target);
+        assertArrayEquals(content, bytes(target));
+        assertEquals(Arrays.asList("null null", "bytes=3000- \"v1\""), requests);
+    }
+
+    private File download(File target) {
+        final AtomicReference<File> result = new AtomicReference<>();
+        server.mediaStorage(new URLConnectionTransport()).downloadTo(MEDIA_ID, target, new CompletionHandler<File>() {
+            @Override
+            public void onCompleted(File file) {
+                result.set(file);
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+                throw new AssertionError(t);
+            }
+        });
+        return result.get();
+    }
+
+    private void writePart(File target, String mediaId, String validator, int length) throws IOException {
+        // the stale bytes differ from the content, so a wrongly kept prefix shows in the result
+        byte[] stale = Arrays.copyOf(content, length);
+        if (!validator.equals(etag) || !mediaId.equals(MEDIA_ID)) {
+            Arrays.fill(stale, (byte) 0);
+        }
+        write(new File(target.getPath() + ".part"), stale);
+        write(new File(target.getPath() + ".part.state"), (mediaId + "\n" + validator + "\n").getBytes("UTF-8"));
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] bytes(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Follows the paging of a stub that serves two pages, the second one after m2.
+ */
+public class MediaIteratorTest {
+    private StubServer server;
+    // the query of each list request
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.handle(StubServer.MEDIA_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.drain(exchange.getRequestBody());
+                String query = exchange.getRequestURI().getQuery();
+                queries.add(query);
+                if (query != null && query.contains("after=m2")) {
+                    StubServer.respond(exchange, 200, "{\"media\":[{\"id\":\"m3\"}],\"paging\":{}}");
+                } else {
+                    StubServer.respond(exchange, 200,
+                            "{\"media\":[{\"id\":\"m1\"},{\"id\":\"m2\"}],\"paging\":{\"next\":\"next\"}}");
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void beforeIsSentWithTheFirstPageOnly() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("before", "m9");
+        params.put("limit", 2);
+
+        assertEquals(Arrays.asList("m1", "m2", "m3"), ids(params));
+        assertEquals(2, queries.size());
+        assertTrue(queries.get(0), queries.get(0).contains("before=m9"));
+        assertFalse(queries.get(1), queries.get(1).contains("before"));
+        assertTrue(queries.get(1), queries.get(1).contains("after=m2"));
+        assertTrue(queries.get(1), queries.get(1).contains("limit=2"));
+        // the caller's map is left alone
+        assertEquals("m9", params.get("before"));
+    }
+
+    private List<String> ids(Map<String, ?> params) {
+        MediaIterator iterator = server.mediaStorage(new URLConnectionTransport()).iterate(params, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        List<String> ids = new ArrayList<>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,164 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.mstorage.entity.MediaIndex;
+import com.ricohapi.mstorage.entity.MediaInfo;
+import com.ricohapi.mstorage.entity.MediaList;
+import com.ricohapi.mstorage.entity.MediaRecord;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import net.arnx.jsonic.JSON;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MediaMirrorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.handle(StubServer.MEDIA_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.drain(exchange.getRequestBody());
+                requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+                StubServer.respond(exchange, 200, "{\"media\":[{\"id\":\"server1\"}],\"paging\":{}}");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void plainValuesAreAnsweredByTheMirror() throws IOException {
+        MediaStorage mediaStorage = mirrored();
+
+        assertEquals(Arrays.asList("a", "c"), ids(list(mediaStorage, "meta.user.album", "trip")));
+        assertEquals(Collections.<String>emptyList(), requests);
+    }
+
+    @Test
+    public void operatorsAndNumbersFallBackToTheServer() throws IOException {
+        MediaStorage mediaStorage = mirrored();
+        Map<String, Object> operator = new HashMap<>();
+        operator.put("$gt", "3");
+
+        assertEquals(Collections.singletonList("server1"), ids(list(mediaStorage, "meta.user.rating", operator)));
+        assertEquals(Collections.singletonList("server1"), ids(list(mediaStorage, "meta.user.rating", 5)));
+        assertEquals(Arrays.asList("POST /v1/media/search", "POST /v1/media/search"), requests);
+    }
+
+    @Test
+    public void failedSaveIsWrittenAgain() throws IOException {
+        File file = new File(folder.getRoot(), "mirror.json");
+        MediaMirror mirror = new MediaMirror(file);
+        MediaInfo mediaInfo = new MediaInfo();
+        mediaInfo.setId("a");
+        mirror.put(mediaInfo);
+
+        // a non-empty directory in place of the snapshot makes the rename fail
+        assertTrue(new File(file, "blocker").mkdirs());
+        try {
+            mirror.save();
+            fail("the snapshot was replaced");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(new File(file, "blocker").delete() && file.delete());
+
+        mirror.save();
+        assertEquals(1, new MediaMirror(file).size());
+    }
+
+    private MediaStorage mirrored() throws IOException {
+        MediaMirror.Snapshot snapshot = new MediaMirror.Snapshot();
+        snapshot.setSyncedAt(System.currentTimeMillis());
+        snapshot.getMedia().add(record("a", "trip", "5"));
+        snapshot.getMedia().add(record("b", "home", "5"));
+        snapshot.getMedia().add(record("c", "trip", "4"));
+        File file = folder.newFile("mirror.json");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            JSON.encode(snapshot, out);
+        } finally {
+            out.close();
+        }
+
+        MediaStorage mediaStorage = server.mediaStorage(new URLConnectionTransport());
+        MediaMirror mirror = new MediaMirror(file);
+        assertTrue(mirror.isFresh());
+        mediaStorage.setMirror(mirror);
+        return mediaStorage;
+    }
+
+    private static MediaRecord record(String id, String album, String rating) {
+        MediaRecord record = new MediaRecord();
+        record.setId(id);
+        Map<String, String> user = new HashMap<>();
+        user.put("album", album);
+        user.put("rating", rating);
+        record.setUser(user);
+        return record;
+    }
+
+    private static MediaList list(MediaStorage mediaStorage, String field, Object value) {
+        Map<String, Object> filter = new HashMap<>();
+        filter.put(field, value);
+        Map<String, Object> params = new HashMap<>();
+        params.put(MediaStorage.LIST_PARAM_KEY_FILTER, filter);
+        final AtomicReference<MediaList> result = new AtomicReference<>();
+        mediaStorage.list(params, new CompletionHandler<MediaList>() {
+            @Override
+            public void onCompleted(MediaList mediaList) {
+                result.set(mediaList);
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+                throw new AssertionError(t);
+            }
+        });
+        return result.get();
+    }
+
+    private static List<String> ids(MediaList mediaList) {
+        List<String> ids = new ArrayList<>();
+        for (MediaIndex mediaIndex : mediaList.getMediaList()) {
+            ids.add(mediaIndex.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,106 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.mstorage.entity.MediaInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class OperationTraceTest {
+    private StubServer server;
+    private MediaStorage mediaStorage;
+    private final InMemoryMediaMetrics metrics = new InMemoryMediaMetrics();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.handle(StubServer.MEDIA_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.drain(exchange.getRequestBody());
+                if ("DELETE".equals(exchange.getRequestMethod())) {
+                    StubServer.respond(exchange, 204, "");
+                } else if (exchange.getRequestURI().getPath().endsWith("/broken")) {
+                    StubServer.respond(exchange, 200, "{\"id\":");
+                } else {
+                    StubServer.respond(exchange, 200, "{\"id\":\"media1\",\"content_type\":\"image/jpeg\",\"bytes\":1}");
+                }
+            }
+        });
+        mediaStorage = server.mediaStorage(new URLConnectionTransport());
+        mediaStorage.setMetrics(metrics);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void malformedBodyFinishesTheTrace() {
+        try {
+            mediaStorage.info("broken", new FailingHandler<MediaInfo>());
+            fail("the malformed body was decoded");
+        } catch (RuntimeException e) {
+            // the JSONException escapes the operation
+        }
+
+        assertNull(OperationTrace.current());
+        assertEquals(0, metrics.getInFlight(MediaMetrics.Operation.INFO));
+        assertEquals(1, metrics.getFailureCount(MediaMetrics.Operation.INFO));
+
+        mediaStorage.delete("media1", new FailingHandler<Object>() {
+            @Override
+            public void onCompleted(Object result) {
+                // expected
+            }
+        });
+        assertEquals(Long.valueOf(1), metrics.getResponseCodeCounts(MediaMetrics.Operation.DELETE).get(204));
+        assertNull(metrics.getResponseCodeCounts(MediaMetrics.Operation.INFO).get(204));
+    }
+
+    @Test
+    public void throwingHandlerFinishesTheTrace() {
+        try {
+            mediaStorage.info("media1", new FailingHandler<MediaInfo>() {
+                @Override
+                public void onCompleted(MediaInfo result) {
+                    throw new IllegalStateException("handler failed");
+                }
+            });
+            fail("the handler exception was swallowed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertNull(OperationTrace.current());
+        assertEquals(0, metrics.getInFlight(MediaMetrics.Operation.INFO));
+        assertEquals(0, metrics.getFailureCount(MediaMetrics.Operation.INFO));
+    }
+
+    private static class FailingHandler<T> implements CompletionHandler<T> {
+        @Override
+        public void onCompleted(T result) {
+            throw new AssertionError("completed with " + result);
+        }
+
+        @Override
+        public void onThrowable(Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+}
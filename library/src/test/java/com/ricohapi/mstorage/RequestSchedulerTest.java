@@ -0,0 +1,241 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.mstorage.RequestScheduler.Lane;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives RequestScheduler with a clock that only moves when the test advances it.
+ */
+public class RequestSchedulerTest {
+    private static final long PERMIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final ManualClock clock = new ManualClock();
+    private final List<Acquirer> acquirers = new ArrayList<>();
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (Acquirer acquirer : acquirers) {
+            acquirer.interrupt();
+            acquirer.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void admitsABurstThenOnePermitPerInterval() throws InterruptedException {
+        RequestScheduler scheduler = new RequestScheduler(10, 5, clock);
+        scheduler.setLane(Lane.BULK, 100, 1);
+        for (int i = 0; i < 5; i++) {
+            scheduler.acquire(Lane.BULK);
+        }
+
+        Acquirer sixth = start(scheduler, Lane.BULK);
+        awaitSleeping();
+        clock.advance(PERMIT_NANOS / 2);
+        assertFalse(sixth.isGranted());
+        clock.advance(PERMIT_NANOS / 2);
+        sixth.awaitGranted();
+
+        // a long idle time refills no more than the burst
+        clock.advance(TimeUnit.SECONDS.toNanos(10));
+        for (int i = 0; i < 5; i++) {
+            scheduler.acquire(Lane.BULK);
+        }
+        Acquirer twelfth = start(scheduler, Lane.BULK);
+        awaitSleeping();
+        assertFalse(twelfth.isGranted());
+        assertEquals(11, scheduler.getGrantedCount(Lane.BULK));
+    }
+
+    @Test
+    public void waitingLanesShareTheRateByWeight() throws InterruptedException {
+        RequestScheduler scheduler = new RequestScheduler(10, 1, clock);
+        scheduler.setLane(Lane.INTERACTIVE, 100, 4);
+        scheduler.setLane(Lane.BULK, 100, 1);
+        scheduler.acquire(Lane.INTERACTIVE);
+        scheduler.release(Lane.INTERACTIVE);
+
+        final List<Lane> order = Collections.synchronizedList(new ArrayList<Lane>());
+        for (int i = 0; i < 30; i++) {
+            start(scheduler, Lane.INTERACTIVE, order);
+            start(scheduler, Lane.BULK, order);
+        }
+        awaitQueued(scheduler, Lane.INTERACTIVE, 30);
+        awaitQueued(scheduler, Lane.BULK, 30);
+
+        while (order.size() < 25) {
+            int granted = order.size();
+            clock.advance(PERMIT_NANOS);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (order.size() == granted && clock.sleepers() == 0) {
+                assertTrue("no grant after a permit", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+        int interactive = Collections.frequency(order.subList(0, 25), Lane.INTERACTIVE);
+        assertTrue("interactive grants " + interactive, interactive >= 19 && interactive <= 21);
+    }
+
+    @Test
+    public void laneCapBlocksUntilRelease() throws InterruptedException {
+        RequestScheduler scheduler = new RequestScheduler(1000, 100, clock);
+        scheduler.setLane(Lane.BULK, 2, 1);
+        scheduler.acquire(Lane.BULK);
+        scheduler.acquire(Lane.BULK);
+
+        Acquirer third = start(scheduler, Lane.BULK);
+        awaitQueued(scheduler, Lane.BULK, 1);
+        // the cap of BULK does not hold back INTERACTIVE
+        scheduler.acquire(Lane.INTERACTIVE);
+        Thread.sleep(50);
+        assertFalse(third.isGranted());
+        assertEquals(2, scheduler.getInFlight(Lane.BULK));
+
+        scheduler.release(Lane.BULK);
+        third.awaitGranted();
+        assertEquals(2, scheduler.getInFlight(Lane.BULK));
+        assertEquals(0, scheduler.getQueued(Lane.BULK));
+    }
+
+    @Test
+    public void interruptedAcquireLeavesTheQueueAndWakesTheNext() throws InterruptedException {
+        RequestScheduler scheduler = new RequestScheduler(10, 1, clock);
+        scheduler.acquire(Lane.BULK);
+        scheduler.release(Lane.BULK);
+
+        Acquirer first = start(scheduler, Lane.BULK);
+        awaitSleeping();
+        Acquirer second = start(scheduler, Lane.BULK);
+        awaitQueued(scheduler, Lane.BULK, 2);
+
+        first.interrupt();
+        first.join(TIMEOUT_MILLIS);
+        assertTrue(first.failure instanceof InterruptedException);
+        assertEquals(1, scheduler.getQueued(Lane.BULK));
+
+        awaitSleeping();
+        clock.advance(PERMIT_NANOS);
+        second.awaitGranted();
+        assertEquals(0, scheduler.getQueued(Lane.BULK));
+        assertEquals(1, scheduler.getInFlight(Lane.BULK));
+    }
+
+    private Acquirer start(RequestScheduler scheduler, Lane lane) {
+        return start(scheduler, lane, null);
+    }
+
+    private Acquirer start(RequestScheduler scheduler, Lane lane, List<Lane> order) {
+        Acquirer acquirer = new Acquirer(scheduler, lane, order);
+        acquirers.add(acquirer);
+        acquirer.start();
+        return acquirer;
+    }
+
+    private void awaitSleeping() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (clock.sleepers() == 0) {
+            assertTrue("nobody waits for a permit", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitQueued(RequestScheduler scheduler, Lane lane, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (scheduler.getQueued(lane) < count) {
+            assertTrue(lane + " queued " + scheduler.getQueued(lane), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * A clock whose sleep returns only once the test has advanced the time past its end.
+     */
+    private static class ManualClock implements RequestScheduler.Clock {
+        private long now = 0;
+        private int sleepers = 0;
+
+        @Override
+        public synchronized long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public synchronized void sleep(long nanos) throws InterruptedException {
+            long until = now + nanos;
+            sleepers++;
+            try {
+                while (now < until) {
+                    wait();
+                }
+            } finally {
+                sleepers--;
+            }
+        }
+
+        synchronized void advance(long nanos) {
+            now += nanos;
+            notifyAll();
+        }
+
+        synchronized int sleepers() {
+            return sleepers;
+        }
+    }
+
+    /**
+     * Acquires a permit of lane, then records the lane in order and releases it when order is given.
+     */
+    private static class Acquirer extends Thread {
+        private final RequestScheduler scheduler;
+        private final Lane lane;
+        private final List<Lane> order;
+        private volatile boolean granted;
+        volatile Throwable failure;
+
+        Acquirer(RequestScheduler scheduler, Lane lane, List<Lane> order) {
+            this.scheduler = scheduler;
+            this.lane = lane;
+            this.order = order;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                scheduler.acquire(lane);
+                granted = true;
+                if (order != null) {
+                    order.add(lane);
+                    scheduler.release(lane);
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+
+        boolean isGranted() {
+            return granted;
+        }
+
+        void awaitGranted() throws InterruptedException {
+            join(TIMEOUT_MILLIS);
+            assertTrue(lane + " was not granted", granted);
+        }
+    }
+}
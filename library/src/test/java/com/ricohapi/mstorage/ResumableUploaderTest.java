@@ -0,0 +1,238 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.auth.RicohAPIException;
+import com.ricohapi.mstorage.entity.MediaInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs ResumableUploader against a stub of the upload session protocol, through the default
+ * RetryingTransport.
+ */
+public class ResumableUploaderTest {
+    private static final int PART_SIZE = 1000;
+    private static final int LENGTH = 4500;
+    private static final String UPLOAD_ID = "session1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<Integer, byte[]> parts = new ConcurrentHashMap<>();
+    private final AtomicInteger partFailures = new AtomicInteger();
+    private final AtomicInteger completeFailures = new AtomicInteger();
+    private volatile int failingPart = -1;
+    private volatile boolean sessionsSupported = true;
+    private volatile byte[] uploaded;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.handle(StubServer.MEDIA_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath().substring(StubServer.MEDIA_PATH.length());
+                byte[] body = read(exchange.getRequestBody());
+                requests.add(path);
+                if (path.isEmpty()) {
+                    uploaded = body;
+                    StubServer.respond(exchange, 201, mediaInfo("direct", body.length));
+                } else if (!sessionsSupported) {
+                    StubServer.respond(exchange, 404, "{}");
+                } else if (path.equals("/uploads")) {
+                    StubServer.respond(exchange, 200, "{\"upload_id\":\"" + UPLOAD_ID + "\"}");
+                } else if (path.startsWith("/uploads/" + UPLOAD_ID + "/parts/")) {
+                    int part = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+                    if (part == failingPart && partFailures.getAndIncrement() == 0) {
+                        StubServer.respond(exchange, 400, "{}");
+                    } else {
+                        parts.put(part, body);
+                        StubServer.respond(exchange, 204, "");
+                    }
+                } else if (path.equals("/uploads/" + UPLOAD_ID + "/complete")) {
+                    if (completeFailures.getAndDecrement() > 0) {
+                        StubServer.respond(exchange, 503, "{}");
+                        return;
+                    }
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    for (int part = 0; part < parts.size(); part++) {
+                        content.write(parts.get(part));
+                    }
+                    uploaded = content.toByteArray();
+                    StubServer.respond(exchange, 200, mediaInfo("assembled", uploaded.length));
+                } else {
+                    StubServer.respond(exchange, 404, "{}");
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void resumesWithTheFailedPartOnly() throws IOException {
+        File file = content();
+        failingPart = 2;
+        ResumableUploader uploader = uploader();
+
+        Throwable failure = upload(uploader, file).getThrowable();
+        assertTrue(failure instanceof RicohAPIException);
+        assertEquals(400, ((RicohAPIException) failure).getStatusCode());
+        assertEquals(4, parts.size());
+
+        requests.clear();
+        Result result = upload(uploader, file);
+        assertEquals("assembled", result.getMediaInfo().getId());
+        assertEquals(Arrays.asList("/uploads/" + UPLOAD_ID + "/parts/2", "/uploads/" + UPLOAD_ID + "/complete"), requests);
+        assertArrayEquals(bytes(file), uploaded);
+    }
+
+    @Test
+    public void completeIsNotRetriedByTheTransport() throws IOException {
+        File file = content();
+        completeFailures.set(1);
+        ResumableUploader uploader = uploader();
+
+        Throwable failure = upload(uploader, file).getThrowable();
+        assertEquals(503, ((RicohAPIException) failure).getStatusCode());
+        assertEquals(1, count("/uploads/" + UPLOAD_ID + "/complete"));
+
+        requests.clear();
+        Result result = upload(uploader, file);
+        assertEquals("assembled", result.getMediaInfo().getId());
+        assertEquals(Collections.singletonList("/uploads/" + UPLOAD_ID + "/complete"), requests);
+        assertArrayEquals(bytes(file), uploaded);
+    }
+
+    @Test
+    public void fallsBackToASingleUploadWithoutSessions() throws IOException {
+        File file = content();
+        sessionsSupported = false;
+
+        Result result = upload(uploader(), file);
+        assertEquals("direct", result.getMediaInfo().getId());
+        assertEquals(Arrays.asList("/uploads", ""), requests);
+        assertArrayEquals(bytes(file), uploaded);
+    }
+
+    private ResumableUploader uploader() throws IOException {
+        MediaStorage mediaStorage = server.mediaStorage(new RetryingTransport(new URLConnectionTransport()));
+        return new ResumableUploader(mediaStorage, folder.newFolder(), PART_SIZE, 2, new RetryPolicy(1, 10, 10, 0.1));
+    }
+
+    private int count(String path) {
+        int count = 0;
+        synchronized (requests) {
+            for (String request : requests) {
+                if (request.equals(path)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private File content() throws IOException {
+        byte[] content = new byte[LENGTH];
+        new Random(1).nextBytes(content);
+        File file = folder.newFile("panorama.jpg");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] bytes(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String mediaInfo(String id, int bytes) {
+        return "{\"id\":\"" + id + "\",\"content_type\":\"image/jpeg\",\"bytes\":" + bytes + "}";
+    }
+
+    private static Result upload(ResumableUploader uploader, File file) {
+        final Result result = new Result();
+        uploader.upload(file, new CompletionHandler<MediaInfo>() {
+            @Override
+            public void onCompleted(MediaInfo mediaInfo) {
+                result.mediaInfo.set(mediaInfo);
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+                result.throwable.set(t);
+            }
+        });
+        return result;
+    }
+
+    private static class Result {
+        final AtomicReference<MediaInfo> mediaInfo = new AtomicReference<>();
+        final AtomicReference<Throwable> throwable = new AtomicReference<>();
+
+        MediaInfo getMediaInfo() {
+            if (throwable.get() != null) {
+                throw new AssertionError(throwable.get());
+            }
+            return mediaInfo.get();
+        }
+
+        Throwable getThrowable() {
+            return throwable.get();
+        }
+    }
+}
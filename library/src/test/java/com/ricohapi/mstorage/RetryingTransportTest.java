@@ -0,0 +1,243 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs RetryingTransport over URLConnectionTransport against a stub that answers with queued status codes.
+ */
+public class RetryingTransportTest {
+    private StubServer server;
+    private final AtomicInteger hits = new AtomicInteger();
+    // the status codes to answer, one per request; the last one repeats
+    private volatile int[] codes = {200};
+    private volatile String retryAfter;
+    private volatile CountDownLatch held;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.handle("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StubServer.drain(exchange.getRequestBody());
+                int hit = hits.getAndIncrement();
+                CountDownLatch latch = held;
+                if (latch != null) {
+                    try {
+                        latch.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                int[] answers = codes;
+                int code = answers[Math.min(hit, answers.length - 1)];
+                if (retryAfter != null && code != 200) {
+                    exchange.getResponseHeaders().set("Retry-After", retryAfter);
+                }
+                StubServer.respond(exchange, code, "{}");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void retryAfterIsReadInSecondsAndAsAnHttpDate() {
+        assertEquals(2000, RetryingTransport.retryAfterMillis("2"));
+        assertEquals(0, RetryingTransport.retryAfterMillis("-5"));
+        assertEquals(-1, RetryingTransport.retryAfterMillis(null));
+        assertEquals(-1, RetryingTransport.retryAfterMillis("soon"));
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        long delay = RetryingTransport.retryAfterMillis(format.format(new Date(System.currentTimeMillis() + 5000)));
+        assertTrue("delay " + delay, delay > 3000 && delay <= 5000);
+        assertEquals(0, RetryingTransport.retryAfterMillis(format.format(new Date(System.currentTimeMillis() - 5000))));
+    }
+
+    @Test
+    public void retryAfterIsWaitedFor() throws IOException {
+        codes = new int[] {503, 200};
+        retryAfter = "1";
+        RetryingTransport transport = transport(new RetryPolicy(3, 0, 5000, 0.1), new CircuitBreaker());
+
+        long start = System.nanoTime();
+        assertEquals(200, code(transport.get(server.url("/media"), null, header())));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        assertEquals(2, hits.get());
+        assertEquals(1, transport.getRetryCount());
+    }
+
+    @Test
+    public void retryAfterLongerThanTheMaxDelayIsNotWaitedFor() throws IOException {
+        codes = new int[] {429, 200};
+        retryAfter = "3600";
+        RetryingTransport transport = transport(new RetryPolicy(3, 0, 5000, 0.1), new CircuitBreaker());
+
+        assertEquals(429, code(transport.get(server.url("/media"), null, header())));
+        assertEquals(1, hits.get());
+    }
+
+    @Test
+    public void backoffIsRandomUpToACappedExponential() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 500, 0.1);
+        for (int attempt = 1; attempt <= 40; attempt++) {
+            long ceiling = Math.min(100L << Math.min(attempt - 1, 30), 500);
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.backoffMillis(attempt);
+                assertTrue("attempt " + attempt + " waits " + delay, delay >= 0 && delay < ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void attemptsStopAtMaxAttemptsAndWhenTheBudgetRunsOut() throws IOException {
+        codes = new int[] {503};
+        RetryingTransport transport = transport(new RetryPolicy(3, 0, 0, 0), new CircuitBreaker(1000, 0));
+
+        // the reserve allows ten retries, two per request
+        for (int i = 0; i < RetryPolicy.BUDGET_RESERVE / 2; i++) {
+            assertEquals(503, code(transport.get(server.url("/media"), null, header())));
+        }
+        assertEquals(RetryPolicy.BUDGET_RESERVE / 2 * 3, hits.get());
+        assertEquals(RetryPolicy.BUDGET_RESERVE, transport.getRetryCount());
+
+        hits.set(0);
+        assertEquals(503, code(transport.get(server.url("/media"), null, header())));
+        assertEquals(1, hits.get());
+    }
+
+    @Test
+    public void onlyIdempotentRequestsAndSearchesAreRetried() throws IOException {
+        codes = new int[] {503};
+        RetryingTransport transport = transport(new RetryPolicy(3, 0, 0, 0.1), new CircuitBreaker(1000, 0));
+        Map<String, Object> params = new HashMap<>();
+        params.put("key", "value");
+
+        assertHits(3, transport.get(server.url("/media"), null, header()));
+        assertHits(3, transport.download(server.url("/media/1/content"), header()));
+        assertHits(3, transport.delete(server.url("/media/1"), header()));
+        assertHits(3, transport.post(server.url("/media" + MediaStorage.SEARCH_PATH), header(), params,
+                RicohAPIRequest.ParamType.JSON));
+        assertHits(1, transport.post(server.url("/media/uploads"), header(), params, RicohAPIRequest.ParamType.JSON));
+        assertHits(1, transport.put(server.url("/media/1/meta/user/key"), header(), "value"));
+        assertHits(1, transport.upload(server.url("/media"), header(), new ByteArrayInputStream(new byte[10]), 10));
+    }
+
+    @Test
+    public void breakerOpensThenLetsOneTrialThroughAndCloses() throws Exception {
+        codes = new int[] {500, 500, 200};
+        final RetryingTransport transport = transport(new RetryPolicy(1, 0, 0, 0.1), new CircuitBreaker(2, 200));
+        CircuitBreaker breaker = transport.getCircuitBreaker();
+
+        assertEquals(500, code(transport.get(server.url("/media"), null, header())));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(500, code(transport.get(server.url("/media"), null, header())));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertRejected(transport);
+        assertEquals(2, hits.get());
+
+        Thread.sleep(250);
+        // the trial is held by the server; meanwhile other requests are still rejected
+        held = new CountDownLatch(1);
+        final AtomicInteger trialCode = new AtomicInteger();
+        Thread trial = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    trialCode.set(code(transport.get(server.url("/media"), null, header())));
+                } catch (IOException e) {
+                    trialCode.set(-1);
+                }
+            }
+        });
+        trial.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hits.get() < 3) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertRejected(transport);
+        held.countDown();
+        held = null;
+        trial.join(5000);
+
+        assertEquals(200, trialCode.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(200, code(transport.get(server.url("/media"), null, header())));
+        assertEquals(2, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void failedTrialOpensTheBreakerAgain() throws Exception {
+        codes = new int[] {500};
+        RetryingTransport transport = transport(new RetryPolicy(1, 0, 0, 0.1), new CircuitBreaker(1, 200));
+
+        assertEquals(500, code(transport.get(server.url("/media"), null, header())));
+        Thread.sleep(250);
+        assertEquals(500, code(transport.get(server.url("/media"), null, header())));
+        assertEquals(CircuitBreaker.State.OPEN, transport.getCircuitBreaker().getState());
+        assertRejected(transport);
+        assertEquals(2, hits.get());
+    }
+
+    private static RetryingTransport transport(RetryPolicy retryPolicy, CircuitBreaker circuitBreaker) {
+        return new RetryingTransport(new URLConnectionTransport(), retryPolicy, circuitBreaker);
+    }
+
+    private void assertHits(int expected, TransportResponse response) throws IOException {
+        assertEquals(503, code(response));
+        assertEquals(expected, hits.getAndSet(0));
+    }
+
+    private void assertRejected(RetryingTransport transport) throws IOException {
+        try {
+            code(transport.get(server.url("/media"), null, header()));
+            fail("the open circuit let a request through");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+    }
+
+    private static Map<String, String> header() {
+        return new HashMap<>();
+    }
+
+    private static int code(TransportResponse response) throws IOException {
+        try {
+            return response.getResponseCode();
+        } finally {
+            response.close();
+        }
+    }
+}
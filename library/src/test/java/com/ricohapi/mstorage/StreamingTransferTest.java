@@ -0,0 +1,109 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Moves four times the heap through the transport; buffering a body would run out of memory.
+ * build.gradle runs tests with a small heap so that this stays quick.
+ */
+public class StreamingTransferTest {
+    private static final long MAX_TESTED_HEAP = 256L * 1024 * 1024;
+
+    private StubServer server;
+    private URLConnectionTransport transport;
+    private long length;
+    private final AtomicLong uploaded = new AtomicLong();
+
+    @Before
+    public void setUp() throws IOException {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        assumeTrue("needs a heap of at most 256 MB", maxMemory <= MAX_TESTED_HEAP);
+        length = 4 * maxMemory;
+        server = new StubServer();
+        server.handle("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                uploaded.set(StubServer.drain(exchange.getRequestBody()));
+                StubServer.respond(exchange, 201, "{}");
+            }
+        });
+        server.handle("/download", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, length);
+                InputStream content = new StubServer.PatternInputStream(length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = content.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        transport = new URLConnectionTransport();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void uploadWithKnownLengthIsStreamed() throws IOException {
+        upload(length);
+    }
+
+    @Test
+    public void uploadWithUnknownLengthIsStreamed() throws IOException {
+        upload(RicohAPIRequest.UNKNOWN_LENGTH);
+    }
+
+    @Test
+    public void downloadIsStreamed() throws IOException {
+        TransportResponse response = transport.download(server.url("/download"), new HashMap<String, String>());
+        assertTrue(response.isSucceeded());
+        InputStream inputStream = response.getInputStream();
+        try {
+            assertEquals(length, StubServer.drain(inputStream));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void upload(long contentLength) throws IOException {
+        TransportResponse response = transport.upload(server.url("/upload"), new HashMap<String, String>(),
+                new StubServer.PatternInputStream(length), contentLength);
+        try {
+            assertEquals(201, response.getResponseCode());
+        } finally {
+            response.close();
+        }
+        assertEquals(length, uploaded.get());
+    }
+}
@@ -0,0 +1,177 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server for tests, serving each request on its own thread.
+ * mediaStorage returns a client whose requests to the Ricoh API come here instead, under /v1/media.
+ */
+class StubServer implements Closeable {
+    static final String MEDIA_PATH = "/v1/media";
+    static final String TOKEN = "stub-token";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    StubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    void handle(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * @return a MediaStorage with a token that sends its requests to this server through transport
+     */
+    MediaStorage mediaStorage(HttpTransport transport) {
+        TokenManager tokenManager = new TokenManager(null, 0) {
+            @Override
+            public String getAccessToken() {
+                return TOKEN;
+            }
+
+            @Override
+            String refresh(String staleToken) {
+                return TOKEN;
+            }
+        };
+        return new MediaStorage(tokenManager, new Redirect(transport, url(MEDIA_PATH)));
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Reads inputStream to its end without keeping it.
+     * @return the number of bytes read
+     */
+    static long drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        if (bytes.length == 0) {
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Produces length bytes of a repeating pattern without holding them.
+     */
+    static class PatternInputStream extends InputStream {
+        private long remaining;
+
+        PatternInputStream(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) return -1;
+            remaining--;
+            return (int) (remaining & 0xff);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (remaining <= 0) return -1;
+            int count = (int) Math.min(length, remaining);
+            for (int i = 0; i < count; i++) {
+                bytes[offset + i] = (byte) --remaining;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Sends the requests for MediaStorage.ENDPOINT to another base URL.
+     */
+    private static class Redirect implements HttpTransport {
+        private final HttpTransport transport;
+        private final String endpoint;
+
+        Redirect(HttpTransport transport, String endpoint) {
+            this.transport = transport;
+            this.endpoint = endpoint;
+        }
+
+        private String redirect(String url) {
+            return url.startsWith(MediaStorage.ENDPOINT) ? endpoint + url.substring(MediaStorage.ENDPOINT.length()) : url;
+        }
+
+        @Override
+        public TransportResponse get(String url, Map<String, ?> queryParams, Map<String, String> header) throws IOException {
+            return transport.get(redirect(url), queryParams, header);
+        }
+
+        @Override
+        public TransportResponse post(String url, Map<String, String> header, Map<String, ?> params,
+                                      RicohAPIRequest.ParamType paramType) throws IOException {
+            return transport.post(redirect(url), header, params, paramType);
+        }
+
+        @Override
+        public TransportResponse put(String url, Map<String, String> header, String value) throws IOException {
+            return transport.put(redirect(url), header, value);
+        }
+
+        @Override
+        public TransportResponse delete(String url, Map<String, String> header) throws IOException {
+            return transport.delete(redirect(url), header);
+        }
+
+        @Override
+        public TransportResponse upload(String url, Map<String, String> header, InputStream inputStream,
+                                        long contentLength) throws IOException {
+            return transport.upload(redirect(url), header, inputStream, contentLength);
+        }
+
+        @Override
+        public TransportResponse download(String url, Map<String, String> header) throws IOException {
+            return transport.download(redirect(url), header);
+        }
+    }
+}
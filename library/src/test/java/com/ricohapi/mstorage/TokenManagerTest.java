@@ -0,0 +1,184 @@
+//
+//  Copyright (c) 2016 Ricoh Company, Ltd. All Rights Reserved.
+//  See LICENSE for more information
+//
+
+package com.ricohapi.mstorage;
+
+import com.ricohapi.auth.AuthClient;
+import com.ricohapi.auth.CompletionHandler;
+import com.ricohapi.auth.Scope;
+import com.ricohapi.auth.entity.AuthResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs TokenManager and AuthorizedTransport with an AuthClient that hands out numbered tokens
+ * against a stub that accepts a single one.
+ */
+public class TokenManagerTest {
+    private static final int THREADS = 8;
+
+    private StubServer server;
+    private final StubAuthClient authClient = new StubAuthClient();
+    private volatile String accepted;
+    // the Authorization header of each request
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        server.handle("/media", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                requests.add(authorization);
+                if (("Bearer " + accepted).equals(authorization)) {
+                    StubServer.respond(exchange, 200, "{}");
+                } else {
+                    StubServer.respond(exchange, 401, "{}");
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void concurrentUnauthorizedRequestsShareOneRefresh() throws Exception {
+        TokenManager tokenManager = new TokenManager(authClient, 0);
+        connect(tokenManager);
+        // token1 expires, and the renewal takes long enough for every request to be rejected
+        accepted = "token2";
+        authClient.delayMillis = 200;
+        final AuthorizedTransport transport = new AuthorizedTransport(new URLConnectionTransport(), tokenManager);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger succeeded = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        TransportResponse response = transport.get(server.url("/media"), null, new HashMap<String, String>());
+                        try {
+                            if (response.getResponseCode() == 200) {
+                                succeeded.incrementAndGet();
+                            }
+                        } finally {
+                            response.close();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (IOException e) {
+                        // counted as not succeeded
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(THREADS, succeeded.get());
+        assertEquals(1, tokenManager.getRefreshCount());
+        // connect, then a single session for the refresh
+        assertEquals(2, authClient.sessions.get());
+        assertEquals(THREADS, Collections.frequency(requests, "Bearer token1"));
+        assertEquals(THREADS, Collections.frequency(requests, "Bearer token2"));
+        assertEquals(2 * THREADS, requests.size());
+    }
+
+    @Test
+    public void scheduledRefreshIsSeenByOtherThreads() throws Exception {
+        TokenManager tokenManager = new TokenManager(authClient, 50);
+        try {
+            connect(tokenManager);
+            assertEquals("token1", tokenManager.getAccessToken());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (tokenManager.getRefreshCount() < 1) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            tokenManager.stop();
+            // a renewal that was already running when stop was called
+            Thread.sleep(50);
+            String renewed = tokenManager.getAccessToken();
+            assertEquals("token" + authClient.sessions.get(), renewed);
+            accepted = renewed;
+
+            TransportResponse response = new AuthorizedTransport(new URLConnectionTransport(), tokenManager)
+                    .get(server.url("/media"), null, new HashMap<String, String>());
+            try {
+                assertEquals(200, response.getResponseCode());
+            } finally {
+                response.close();
+            }
+            assertEquals(Collections.singletonList("Bearer " + renewed), requests);
+        } finally {
+            tokenManager.stop();
+        }
+    }
+
+    private static void connect(TokenManager tokenManager) {
+        tokenManager.connect(new CompletionHandler<AuthResult>() {
+            @Override
+            public void onCompleted(AuthResult result) {
+                // connected
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+                throw new AssertionError(t);
+            }
+        });
+    }
+
+    /**
+     * Hands out token1, token2 and so on, one per session, after delayMillis.
+     */
+    private static class StubAuthClient extends AuthClient {
+        final AtomicInteger sessions = new AtomicInteger();
+        volatile long delayMillis;
+
+        StubAuthClient() {
+            super("client", "secret");
+        }
+
+        @Override
+        public void session(Scope scope, CompletionHandler<AuthResult> handler) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                handler.onThrowable(e);
+                return;
+            }
+            handler.onCompleted(new AuthResult("token" + sessions.incrementAndGet()));
+        }
+    }
+}